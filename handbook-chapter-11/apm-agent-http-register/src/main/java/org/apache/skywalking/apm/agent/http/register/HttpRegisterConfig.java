@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.apache.skywalking.apm.agent.http.register;
+
+/**
+ * Optional settings of the http register plugin, injected as java system properties like the backend register
+ * address.
+ *
+ * @author caoyixiong
+ */
+public class HttpRegisterConfig {
+    /**
+     * Max pooled connections to all the backend nodes.
+     */
+    public static int MAX_CONNECTIONS = getInt("httpRegisterMaxConnections", 8);
+
+    /**
+     * Max pooled connections to one backend node.
+     */
+    public static int MAX_CONNECTIONS_PER_NODE = getInt("httpRegisterMaxConnectionsPerNode", 2);
+
+    /**
+     * Timeout of opening a connection, unit is ms.
+     */
+    public static int CONNECT_TIMEOUT = getInt("httpRegisterConnectTimeout", 3000);
+
+    /**
+     * Timeout of waiting for response data, unit is ms.
+     */
+    public static int READ_TIMEOUT = getInt("httpRegisterReadTimeout", 5000);
+
+    /**
+     * Timeout of leasing a connection from the pool, unit is ms.
+     */
+    public static int CONNECTION_REQUEST_TIMEOUT = getInt("httpRegisterConnectionRequestTimeout", 3000);
+
+    /**
+     * How long an idle connection is kept alive when the backend doesn't tell, unit is second. Idle connections are
+     * closed beyond it.
+     */
+    public static int KEEP_ALIVE = getInt("httpRegisterKeepAlive", 60);
+
+    /**
+     * A backend node failing this many requests in a row is left alone for CIRCUIT_BREAKER_OPEN_TIME.
+     */
+    public static int CIRCUIT_BREAKER_FAILURES = getInt("httpRegisterCircuitBreakerFailures", 3);
+
+    /**
+     * How long a failing backend node gets no requests, unit is second. One request tries it again afterwards.
+     */
+    public static int CIRCUIT_BREAKER_OPEN_TIME = getInt("httpRegisterCircuitBreakerOpenTime", 30);
+
+    /**
+     * Gzip the request bodies larger than GZIP_MIN_SIZE. The OAP receiver has to understand gzip bodies before this
+     * is turned on.
+     */
+    public static boolean GZIP = getBoolean("httpRegisterGzip", false);
+
+    /**
+     * Request bodies smaller than this are sent as they are, unit is byte.
+     */
+    public static int GZIP_MIN_SIZE = getInt("httpRegisterGzipMinSize", 1024);
+
+    /**
+     * Talk to the backend with protobuf messages instead of json, which costs less CPU and bytes on both sides. The
+     * OAP receiver has to understand protobuf before this is turned on.
+     */
+    public static boolean PROTOBUF = getBoolean("httpRegisterProtobuf", false);
+
+    /**
+     * The first register request waits a random time up to this, so the agents restarted together don't reach the
+     * backend in lockstep, unit is ms.
+     */
+    public static int INITIAL_DELAY_JITTER = getInt("httpRegisterInitialDelayJitter", 3000);
+
+    /**
+     * Upper bound of the exponential backoff after failed register requests, unit is second.
+     */
+    public static int MAX_BACKOFF = getInt("httpRegisterMaxBackoff", 60);
+
+    /**
+     * Endpoints per page of the endpoint snapshot downloaded once the service is registered, 0 doesn't download it.
+     */
+    public static int SNAPSHOT_PAGE_SIZE = getInt("httpRegisterSnapshotPageSize", 1000);
+
+    /**
+     * Directory of the file keeping the resolved endpoint and network address ids across restarts, not set keeps
+     * them in memory only.
+     */
+    public static String DICTIONARY_CACHE_DIR = System.getProperty("httpRegisterDictionaryCacheDir");
+
+    /**
+     * Size of the dictionary cache file, unit is MB.
+     */
+    public static int DICTIONARY_CACHE_SIZE = getInt("httpRegisterDictionaryCacheSize", 4);
+
+    /**
+     * Interval of logging the size, hits, misses, evictions and rejected admissions of the dictionaries at INFO, unit
+     * is second. 0 doesn't log them.
+     */
+    public static int STATISTICS_LOG_INTERVAL = getInt("httpRegisterStatisticsLogInterval", 60);
+
+    static boolean getBoolean(String key, boolean defaultValue) {
+        String value = System.getProperty(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    static int getInt(String key, int defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
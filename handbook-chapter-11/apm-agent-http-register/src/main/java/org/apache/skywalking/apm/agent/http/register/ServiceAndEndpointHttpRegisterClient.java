@@ -18,6 +18,7 @@
 
 package org.apache.skywalking.apm.agent.http.register;
 
+import org.apache.http.HttpStatus;
 import org.apache.skywalking.apm.agent.core.boot.DefaultNamedThreadFactory;
 import org.apache.skywalking.apm.agent.core.boot.OverrideImplementor;
 import org.apache.skywalking.apm.agent.core.boot.ServiceManager;
@@ -29,7 +30,10 @@ import org.apache.skywalking.apm.agent.core.logging.api.ILog;
 import org.apache.skywalking.apm.agent.core.logging.api.LogManager;
 import org.apache.skywalking.apm.agent.core.os.OSUtil;
 import org.apache.skywalking.apm.agent.core.remote.ServiceAndEndpointRegisterClient;
+import org.apache.skywalking.apm.agent.http.register.HttpRegisterConfig;
 import org.apache.skywalking.apm.agent.http.register.client.HttpClient;
+import org.apache.skywalking.apm.agent.http.register.client.HttpStatusException;
+import org.apache.skywalking.apm.agent.http.register.directory.DictionaryCacheFile;
 import org.apache.skywalking.apm.agent.http.register.directory.EndpointNameHttpDictionary;
 import org.apache.skywalking.apm.agent.http.register.directory.NetworkAddressHttpDictionary;
 import org.apache.skywalking.apm.dependencies.com.google.common.collect.Lists;
@@ -38,12 +42,28 @@ import org.apache.skywalking.apm.dependencies.com.google.gson.JsonArray;
 import org.apache.skywalking.apm.dependencies.com.google.gson.JsonElement;
 import org.apache.skywalking.apm.dependencies.com.google.gson.JsonObject;
 import org.apache.skywalking.apm.network.common.Commands;
-import org.apache.skywalking.apm.util.RunnableWithExceptionProtection;
+import org.apache.skywalking.apm.network.common.KeyIntValuePair;
+import org.apache.skywalking.apm.network.register.v2.EndpointMapping;
+import org.apache.skywalking.apm.network.register.v2.NetAddressMapping;
+import org.apache.skywalking.apm.network.register.v2.Service;
+import org.apache.skywalking.apm.network.register.v2.ServiceInstance;
+import org.apache.skywalking.apm.network.register.v2.ServiceInstancePingPkg;
+import org.apache.skywalking.apm.network.register.v2.ServiceInstanceRegisterMapping;
+import org.apache.skywalking.apm.network.register.v2.ServiceInstances;
+import org.apache.skywalking.apm.network.register.v2.ServiceRegisterMapping;
+import org.apache.skywalking.apm.network.register.v2.Services;
 import org.apache.skywalking.apm.util.StringUtil;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.UUID;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -56,6 +76,11 @@ public class ServiceAndEndpointHttpRegisterClient extends ServiceAndEndpointRegi
     private static final String SERVICE_REGISTER_PATH = "/v6/service/register";
     private static final String SERVICE_INSTANCE_REGISTER_PATH = "/v6/serviceInstance/register";
     private static final String SERVICE_INSTANCE_PING_PATH = "/v6/serviceInstance/ping";
+    private static final String SERVICE_INSTANCE_SYNC_PATH = "/v6/serviceInstance/sync";
+    /**
+     * A backend answering 404 to the combined sync path is asked again after this long, unit is ms.
+     */
+    private static final long COMBINED_SYNC_RETRY_INTERVAL = TimeUnit.MINUTES.toMillis(10);
 
     private static final String SERVICE_NAME = "sn";
     private static final String SERVICE_ID = "si";
@@ -68,28 +93,145 @@ public class ServiceAndEndpointHttpRegisterClient extends ServiceAndEndpointRegi
     private static final String HEARTBEAT_TIME = "ht";
     private static final String INSTANCE_COMMAND = "ic";
 
+    private static final String ENDPOINTS = "ens";
+    private static final String NETWORK_ADDRESSES = "nds";
+
     private static String AGENT_INSTANCE_UUID;
 
+    private ScheduledExecutorService registerExecutor;
     private volatile ScheduledFuture<?> applicationRegisterFuture;
+    /**
+     * Touched by the register thread only.
+     */
+    private int consecutiveFailures = 0;
+    private long retryAfterMillis = 0;
     private volatile long coolDownStartTime = -1;
+    /**
+     * Set once the backend turns out to not offer the combined sync path, which is tried again from this time on, in
+     * case the backend has been upgraded meanwhile. 0 while the path works.
+     */
+    private volatile long combinedSyncRetryTime = 0;
+    private volatile DictionaryCacheFile dictionaryCacheFile;
+    /**
+     * The json of a response with no command, the backend sends the same string every time.
+     */
+    private volatile String noCommandsJson;
+    private long lastStatisticsLogTime = System.currentTimeMillis();
     private Gson gson = new Gson();
 
     @Override
     public void prepare() throws Throwable {
         AGENT_INSTANCE_UUID = StringUtil.isEmpty(Config.Agent.INSTANCE_UUID) ? UUID.randomUUID().toString()
                 .replaceAll("-", "") : Config.Agent.INSTANCE_UUID;
+        if (!StringUtil.isEmpty(HttpRegisterConfig.DICTIONARY_CACHE_DIR)) {
+            openDictionaryCache();
+        }
+    }
+
+    /**
+     * Restore the ids the previous run of this service resolved against the same backend, and keep the new ones in
+     * the same file.
+     */
+    private void openDictionaryCache() {
+        try {
+            DictionaryCacheFile cacheFile = DictionaryCacheFile.open(new File(HttpRegisterConfig.DICTIONARY_CACHE_DIR),
+                    Config.Agent.SERVICE_NAME, HttpClient.INSTANCE.getClusterIdentity(),
+                    HttpRegisterConfig.DICTIONARY_CACHE_SIZE * 1024 * 1024);
+            if (cacheFile == null) {
+                return;
+            }
+            try {
+                cacheFile.replay(new DictionaryCacheFile.Replayer() {
+                    @Override
+                    public void endpoint(int serviceId, String endpointName, int spanType, int endpointId) {
+                        EndpointNameHttpDictionary.INSTANCE.restore(serviceId, endpointName, spanType, endpointId);
+                    }
+
+                    @Override
+                    public void networkAddress(String networkAddress, int addressId) {
+                        NetworkAddressHttpDictionary.INSTANCE.restore(networkAddress, addressId);
+                    }
+                });
+            } catch (RuntimeException e) {
+                // nothing has been registered yet, what was restored before the broken record is dropped too
+                logger.error(e, "Replay the dictionary cache file failure, start it over.");
+                EndpointNameHttpDictionary.INSTANCE.clear();
+                NetworkAddressHttpDictionary.INSTANCE.clear();
+                cacheFile.reset();
+            }
+            EndpointNameHttpDictionary.INSTANCE.cacheTo(cacheFile);
+            NetworkAddressHttpDictionary.INSTANCE.cacheTo(cacheFile);
+            dictionaryCacheFile = cacheFile;
+        } catch (IOException e) {
+            logger.error(e, "Open the dictionary cache file failure, the resolved ids are kept in memory only.");
+        } catch (RuntimeException e) {
+            logger.error(e, "Open the dictionary cache file failure, the resolved ids are kept in memory only.");
+        }
     }
 
     @Override
     public void boot() throws Throwable {
-        applicationRegisterFuture = Executors
-                .newSingleThreadScheduledExecutor(new DefaultNamedThreadFactory("ServiceAndEndpointRegisterClient"))
-                .scheduleAtFixedRate(new RunnableWithExceptionProtection(this, new RunnableWithExceptionProtection.CallbackWhenException() {
-                    @Override
-                    public void handle(Throwable t) {
-                        logger.error("unexpected exception.", t);
+        registerExecutor = Executors.newSingleThreadScheduledExecutor(new DefaultNamedThreadFactory("ServiceAndEndpointRegisterClient"));
+        scheduleNext(HttpRegisterConfig.INITIAL_DELAY_JITTER > 0 ? ThreadLocalRandom.current().nextInt(HttpRegisterConfig.INITIAL_DELAY_JITTER) : 0);
+    }
+
+    /**
+     * Every run schedules the next one once it is done, so a slow backend spaces the requests out instead of the
+     * missed runs of a fixed rate firing back to back.
+     */
+    private void scheduleNext(long delayMillis) {
+        applicationRegisterFuture = registerExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ServiceAndEndpointHttpRegisterClient.this.run();
+                } catch (Throwable t) {
+                    logger.error("unexpected exception.", t);
+                } finally {
+                    if (!registerExecutor.isShutdown()) {
+                        scheduleNext(nextDelay());
                     }
-                }), 0, Config.Collector.APP_AND_SERVICE_REGISTER_CHECK_INTERVAL, TimeUnit.SECONDS);
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The register interval give or take 10%, so the agents started together drift apart. After failures it grows
+     * exponentially, with jitter, up to the max backoff, and it is never shorter than the Retry-After of the backend.
+     */
+    private long nextDelay() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long interval = registerInterval();
+        long delay;
+        if (consecutiveFailures == 0) {
+            delay = interval - interval / 10 + random.nextLong(interval / 5 + 1);
+        } else {
+            long backoff = Math.min(TimeUnit.SECONDS.toMillis(HttpRegisterConfig.MAX_BACKOFF), interval << Math.min(consecutiveFailures, 16));
+            delay = Math.max(interval, backoff / 2 + random.nextLong(backoff / 2 + 1));
+        }
+        delay = Math.max(delay, retryAfterMillis);
+        retryAfterMillis = 0;
+        return delay;
+    }
+
+    private static long registerInterval() {
+        return TimeUnit.SECONDS.toMillis(Config.Collector.APP_AND_SERVICE_REGISTER_CHECK_INTERVAL);
+    }
+
+    /**
+     * The commands in the json string of the response, parsed only when the string isn't the one of no command.
+     */
+    private Commands commandsOf(JsonObject response) {
+        String commandsJson = response.get(INSTANCE_COMMAND).getAsString();
+        if (commandsJson.equals(noCommandsJson)) {
+            return Commands.getDefaultInstance();
+        }
+        Commands commands = gson.fromJson(commandsJson, Commands.class);
+        if (commands.getCommandsCount() == 0) {
+            noCommandsJson = commandsJson;
+        }
+        return commands;
     }
 
     @Override
@@ -98,7 +240,11 @@ public class ServiceAndEndpointHttpRegisterClient extends ServiceAndEndpointRegi
 
     @Override
     public void shutdown() throws Throwable {
+        registerExecutor.shutdownNow();
         applicationRegisterFuture.cancel(true);
+        if (dictionaryCacheFile != null) {
+            dictionaryCacheFile.close();
+        }
     }
 
     @Override
@@ -114,72 +260,265 @@ public class ServiceAndEndpointHttpRegisterClient extends ServiceAndEndpointRegi
         }
         coolDownStartTime = -1;
 
+        boolean failed = false;
         boolean shouldTry = true;
         while (shouldTry) {
             shouldTry = false;
             try {
                 if (RemoteDownstreamConfig.Agent.SERVICE_ID == DictionaryUtil.nullValue()) {
-                    JsonArray jsonElements = gson.fromJson(
-                            HttpClient.INSTANCE.execute(SERVICE_REGISTER_PATH, Lists.newArrayList(Config.Agent.SERVICE_NAME)),
-                            JsonArray.class);
-                    if (jsonElements != null && jsonElements.size() > 0) {
-                        for (JsonElement jsonElement : jsonElements) {
-                            JsonObject jsonObject = jsonElement.getAsJsonObject();
-                            String serviceName = jsonObject.get(SERVICE_NAME).getAsString();
-                            int serviceId = jsonObject.get(SERVICE_ID).getAsInt();
-
-                            if (Config.Agent.SERVICE_NAME.equals(serviceName)) {
-                                RemoteDownstreamConfig.Agent.SERVICE_ID = serviceId;
-                                shouldTry = true;
-                            }
-                        }
+                    shouldTry = HttpRegisterConfig.PROTOBUF ? registerServiceByProtobuf() : registerServiceByJson();
+                    if (shouldTry) {
+                        loadEndpointSnapshot();
                     }
                 } else {
                     if (RemoteDownstreamConfig.Agent.SERVICE_INSTANCE_ID == DictionaryUtil.nullValue()) {
-
-                        JsonArray jsonArray = new JsonArray();
-                        JsonObject mapping = new JsonObject();
-                        jsonArray.add(mapping);
-
-                        mapping.addProperty(SERVICE_ID, RemoteDownstreamConfig.Agent.SERVICE_ID);
-                        mapping.addProperty(INSTANCE_UUID, AGENT_INSTANCE_UUID);
-                        mapping.addProperty(REGISTER_TIME, System.currentTimeMillis());
-                        mapping.addProperty(INSTANCE_PROPERTIES, gson.toJson(OSUtil.buildOSInfo()));
-
-                        JsonArray response = gson.fromJson(HttpClient.INSTANCE.execute(SERVICE_INSTANCE_REGISTER_PATH, jsonArray), JsonArray.class);
-                        for (JsonElement serviceInstance : response) {
-                            String agentInstanceUUID = serviceInstance.getAsJsonObject().get(INSTANCE_UUID).getAsString();
-                            if (AGENT_INSTANCE_UUID.equals(agentInstanceUUID)) {
-                                int serviceInstanceId = serviceInstance.getAsJsonObject().get(INSTANCE_ID).getAsInt();
-                                if (serviceInstanceId != DictionaryUtil.nullValue()) {
-                                    RemoteDownstreamConfig.Agent.SERVICE_INSTANCE_ID = serviceInstanceId;
-                                    RemoteDownstreamConfig.Agent.INSTANCE_REGISTERED_TIME = System.currentTimeMillis();
-                                }
-                            }
+                        if (HttpRegisterConfig.PROTOBUF) {
+                            registerServiceInstanceByProtobuf();
+                        } else {
+                            registerServiceInstanceByJson();
                         }
                     } else {
-                        JsonObject jsonObject = new JsonObject();
-                        jsonObject.addProperty(INSTANCE_ID, RemoteDownstreamConfig.Agent.SERVICE_INSTANCE_ID);
-                        jsonObject.addProperty(HEARTBEAT_TIME, System.currentTimeMillis());
-                        jsonObject.addProperty(INSTANCE_UUID, AGENT_INSTANCE_UUID);
-
-                        JsonObject response = gson.fromJson(HttpClient.INSTANCE.execute(SERVICE_INSTANCE_PING_PATH, jsonObject), JsonObject.class);
+                        // the names taken beyond the capacity since the last tick aren't sent for nothing
+                        NetworkAddressHttpDictionary.INSTANCE.evictOverflow();
+                        EndpointNameHttpDictionary.INSTANCE.evictOverflow();
+                        if (!syncInOneRequest()) {
+                            final Commands commands = HttpRegisterConfig.PROTOBUF ? pingByProtobuf() : pingByJson();
+                            ServiceManager.INSTANCE.findService(CommandService.class).receiveCommand(commands);
 
-                        final Commands commands = gson.fromJson(response.get(INSTANCE_COMMAND).getAsString(), Commands.class);
-                        ServiceManager.INSTANCE.findService(CommandService.class).receiveCommand(commands);
-
-                        NetworkAddressHttpDictionary.INSTANCE.syncRemoteDictionary();
-                        EndpointNameHttpDictionary.INSTANCE.syncRemoteDictionary();
+                            NetworkAddressHttpDictionary.INSTANCE.syncRemoteDictionary();
+                            EndpointNameHttpDictionary.INSTANCE.syncRemoteDictionary();
+                        }
                     }
                 }
             } catch (Throwable t) {
                 logger.error(t, "ServiceAndEndpointHttpRegisterClient execute fail.");
+                failed = true;
+                if (t instanceof HttpStatusException && ((HttpStatusException)t).getRetryAfter() > 0) {
+                    retryAfterMillis = TimeUnit.SECONDS.toMillis(((HttpStatusException)t).getRetryAfter());
+                }
+            }
+        }
+        consecutiveFailures = failed ? consecutiveFailures + 1 : 0;
+        logDictionaryStatistics();
+    }
+
+    private void logDictionaryStatistics() {
+        if (HttpRegisterConfig.STATISTICS_LOG_INTERVAL <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastStatisticsLogTime < TimeUnit.SECONDS.toMillis(HttpRegisterConfig.STATISTICS_LOG_INTERVAL)) {
+            return;
+        }
+        lastStatisticsLogTime = now;
+        long[] endpoints = EndpointNameHttpDictionary.INSTANCE.getStatistics();
+        long[] addresses = NetworkAddressHttpDictionary.INSTANCE.getStatistics();
+        logger.info("endpoint dictionary size: {}, hits: {}, misses: {}, evictions: {}, rejected admissions: {}",
+                endpoints[0], endpoints[1], endpoints[2], endpoints[3], endpoints[4]);
+        logger.info("network address dictionary size: {}, hits: {}, misses: {}, evictions: {}, rejected admissions: {}",
+                addresses[0], addresses[1], addresses[2], addresses[3], addresses[4]);
+    }
+
+    /**
+     * @return true if this service got its id.
+     */
+    private boolean registerServiceByJson() throws IOException {
+        boolean registered = false;
+        JsonArray jsonElements = gson.fromJson(
+                HttpClient.INSTANCE.execute(SERVICE_REGISTER_PATH, Lists.newArrayList(Config.Agent.SERVICE_NAME)),
+                JsonArray.class);
+        if (jsonElements != null && jsonElements.size() > 0) {
+            for (JsonElement jsonElement : jsonElements) {
+                JsonObject jsonObject = jsonElement.getAsJsonObject();
+                String serviceName = jsonObject.get(SERVICE_NAME).getAsString();
+                int serviceId = jsonObject.get(SERVICE_ID).getAsInt();
+
+                if (Config.Agent.SERVICE_NAME.equals(serviceName)) {
+                    RemoteDownstreamConfig.Agent.SERVICE_ID = serviceId;
+                    registered = true;
+                }
             }
         }
+        return registered;
+    }
+
+    private boolean registerServiceByProtobuf() throws IOException {
+        boolean registered = false;
+        Services services = Services.newBuilder()
+                .addServices(Service.newBuilder().setServiceName(Config.Agent.SERVICE_NAME))
+                .build();
+        ServiceRegisterMapping mapping = HttpClient.INSTANCE.execute(SERVICE_REGISTER_PATH, services, ServiceRegisterMapping.parser());
+        for (KeyIntValuePair service : mapping.getServicesList()) {
+            if (Config.Agent.SERVICE_NAME.equals(service.getKey())) {
+                RemoteDownstreamConfig.Agent.SERVICE_ID = service.getValue();
+                registered = true;
+            }
+        }
+        return registered;
+    }
+
+    /**
+     * Warm up the endpoint dictionary with the endpoints the former instances of this service registered. A failure
+     * only leaves them to be registered again.
+     */
+    private void loadEndpointSnapshot() {
+        if (HttpRegisterConfig.SNAPSHOT_PAGE_SIZE <= 0) {
+            return;
+        }
+        try {
+            int loaded = EndpointNameHttpDictionary.INSTANCE.loadSnapshot(RemoteDownstreamConfig.Agent.SERVICE_ID, HttpRegisterConfig.SNAPSHOT_PAGE_SIZE);
+            logger.info("{} endpoints of the service loaded from the backend snapshot.", loaded);
+        } catch (IOException e) {
+            logger.warn("Load the endpoint snapshot failure, endpoints are registered one sync at a time: {}", e.getMessage());
+        }
+    }
+
+    private void registerServiceInstanceByJson() throws IOException {
+        JsonArray jsonArray = new JsonArray();
+        JsonObject mapping = new JsonObject();
+        jsonArray.add(mapping);
+
+        mapping.addProperty(SERVICE_ID, RemoteDownstreamConfig.Agent.SERVICE_ID);
+        mapping.addProperty(INSTANCE_UUID, AGENT_INSTANCE_UUID);
+        mapping.addProperty(REGISTER_TIME, System.currentTimeMillis());
+        mapping.addProperty(INSTANCE_PROPERTIES, gson.toJson(OSUtil.buildOSInfo()));
+
+        JsonArray response = gson.fromJson(HttpClient.INSTANCE.execute(SERVICE_INSTANCE_REGISTER_PATH, jsonArray), JsonArray.class);
+        for (JsonElement serviceInstance : response) {
+            String agentInstanceUUID = serviceInstance.getAsJsonObject().get(INSTANCE_UUID).getAsString();
+            if (AGENT_INSTANCE_UUID.equals(agentInstanceUUID)) {
+                int serviceInstanceId = serviceInstance.getAsJsonObject().get(INSTANCE_ID).getAsInt();
+                instanceRegistered(serviceInstanceId);
+            }
+        }
+    }
+
+    private void registerServiceInstanceByProtobuf() throws IOException {
+        ServiceInstances instances = ServiceInstances.newBuilder()
+                .addInstances(ServiceInstance.newBuilder()
+                        .setServiceId(RemoteDownstreamConfig.Agent.SERVICE_ID)
+                        .setInstanceUUID(AGENT_INSTANCE_UUID)
+                        .setTime(System.currentTimeMillis())
+                        .addAllProperties(OSUtil.buildOSInfo()))
+                .build();
+        ServiceInstanceRegisterMapping mapping = HttpClient.INSTANCE.execute(SERVICE_INSTANCE_REGISTER_PATH, instances, ServiceInstanceRegisterMapping.parser());
+        for (KeyIntValuePair serviceInstance : mapping.getServiceInstancesList()) {
+            if (AGENT_INSTANCE_UUID.equals(serviceInstance.getKey())) {
+                instanceRegistered(serviceInstance.getValue());
+            }
+        }
+    }
+
+    private void instanceRegistered(int serviceInstanceId) {
+        if (serviceInstanceId != DictionaryUtil.nullValue()) {
+            RemoteDownstreamConfig.Agent.SERVICE_INSTANCE_ID = serviceInstanceId;
+            RemoteDownstreamConfig.Agent.INSTANCE_REGISTERED_TIME = System.currentTimeMillis();
+        }
+    }
+
+    private Commands pingByJson() throws IOException {
+        JsonObject jsonObject = new JsonObject();
+        jsonObject.addProperty(INSTANCE_ID, RemoteDownstreamConfig.Agent.SERVICE_INSTANCE_ID);
+        jsonObject.addProperty(HEARTBEAT_TIME, System.currentTimeMillis());
+        jsonObject.addProperty(INSTANCE_UUID, AGENT_INSTANCE_UUID);
+
+        JsonObject response = gson.fromJson(HttpClient.INSTANCE.execute(SERVICE_INSTANCE_PING_PATH, jsonObject), JsonObject.class);
+        return commandsOf(response);
+    }
+
+    private Commands pingByProtobuf() throws IOException {
+        ServiceInstancePingPkg ping = ServiceInstancePingPkg.newBuilder()
+                .setServiceInstanceId(RemoteDownstreamConfig.Agent.SERVICE_INSTANCE_ID)
+                .setTime(System.currentTimeMillis())
+                .setServiceInstanceUUID(AGENT_INSTANCE_UUID)
+                .build();
+        return HttpClient.INSTANCE.execute(SERVICE_INSTANCE_PING_PATH, ping, Commands.parser());
+    }
+
+    /**
+     * Send the heartbeat together with the endpoints and network addresses to register, and take the commands and
+     * all the ids from one response.
+     *
+     * @return false if the backend doesn't offer the combined sync path, the caller falls back to separate requests.
+     */
+    private boolean syncInOneRequest() throws IOException {
+        if (combinedSyncRetryTime > 0 && System.currentTimeMillis() < combinedSyncRetryTime) {
+            return false;
+        }
+        Commands commands;
+        try {
+            commands = HttpRegisterConfig.PROTOBUF ? syncByProtobuf() : syncByJson();
+        } catch (HttpStatusException e) {
+            if (e.getStatusCode() != HttpStatus.SC_NOT_FOUND) {
+                throw e;
+            }
+            logger.warn("The backend doesn't support {}, heartbeat and dictionaries are synchronized separately for {}s.",
+                    SERVICE_INSTANCE_SYNC_PATH, TimeUnit.MILLISECONDS.toSeconds(COMBINED_SYNC_RETRY_INTERVAL));
+            combinedSyncRetryTime = System.currentTimeMillis() + COMBINED_SYNC_RETRY_INTERVAL;
+            return false;
+        }
+        combinedSyncRetryTime = 0;
+        ServiceManager.INSTANCE.findService(CommandService.class).receiveCommand(commands);
+        return true;
+    }
+
+    private Commands syncByJson() throws IOException {
+        JsonObject request = new JsonObject();
+        request.addProperty(INSTANCE_ID, RemoteDownstreamConfig.Agent.SERVICE_INSTANCE_ID);
+        request.addProperty(HEARTBEAT_TIME, System.currentTimeMillis());
+        request.addProperty(INSTANCE_UUID, AGENT_INSTANCE_UUID);
+        if (EndpointNameHttpDictionary.INSTANCE.hasUnRegisterEndpoints()) {
+            request.add(ENDPOINTS, EndpointNameHttpDictionary.INSTANCE.unRegisterEndpointsAsJson());
+        }
+        if (NetworkAddressHttpDictionary.INSTANCE.hasUnRegisterAddresses()) {
+            request.add(NETWORK_ADDRESSES, NetworkAddressHttpDictionary.INSTANCE.unRegisterAddressesAsJson());
+        }
+
+        JsonObject response = gson.fromJson(HttpClient.INSTANCE.execute(SERVICE_INSTANCE_SYNC_PATH, request), JsonObject.class);
+        if (response.has(ENDPOINTS)) {
+            EndpointNameHttpDictionary.INSTANCE.registeredFromJson(response.getAsJsonArray(ENDPOINTS));
+        }
+        if (response.has(NETWORK_ADDRESSES)) {
+            NetworkAddressHttpDictionary.INSTANCE.registeredFromJson(response.getAsJsonArray(NETWORK_ADDRESSES));
+        }
+        return commandsOf(response);
+    }
+
+    /**
+     * The request is the ping, the endpoints and the network addresses as length delimited messages, the response is
+     * the commands, the endpoint mapping and the network address mapping in the same way.
+     */
+    private Commands syncByProtobuf() throws IOException {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        ServiceInstancePingPkg.newBuilder()
+                .setServiceInstanceId(RemoteDownstreamConfig.Agent.SERVICE_INSTANCE_ID)
+                .setTime(System.currentTimeMillis())
+                .setServiceInstanceUUID(AGENT_INSTANCE_UUID)
+                .build().writeDelimitedTo(request);
+        EndpointNameHttpDictionary.INSTANCE.unRegisterEndpointsAsProtobuf().writeDelimitedTo(request);
+        NetworkAddressHttpDictionary.INSTANCE.unRegisterAddressesAsProtobuf().writeDelimitedTo(request);
+
+        InputStream response = new ByteArrayInputStream(HttpClient.INSTANCE.executeProtobuf(SERVICE_INSTANCE_SYNC_PATH, request.toByteArray()));
+        Commands commands = Commands.parseDelimitedFrom(response);
+        EndpointMapping endpointMapping = EndpointMapping.parseDelimitedFrom(response);
+        if (endpointMapping != null) {
+            EndpointNameHttpDictionary.INSTANCE.registeredFromProtobuf(endpointMapping);
+        }
+        NetAddressMapping addressMapping = NetAddressMapping.parseDelimitedFrom(response);
+        if (addressMapping != null) {
+            NetworkAddressHttpDictionary.INSTANCE.registeredFromProtobuf(addressMapping);
+        }
+        return commands == null ? Commands.getDefaultInstance() : commands;
     }
 
     @Override
     public void coolDown() {
         this.coolDownStartTime = System.currentTimeMillis();
+        // the backend reset the ids of this agent, the ones resolved so far mean nothing anymore
+        EndpointNameHttpDictionary.INSTANCE.clear();
+        NetworkAddressHttpDictionary.INSTANCE.clear();
+        if (dictionaryCacheFile != null) {
+            dictionaryCacheFile.reset();
+        }
     }
 }
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.apache.skywalking.apm.agent.http.register.client;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One backend node with what the client learned about it: the smoothed latency of its responses, the requests it is
+ * answering right now, and whether it failed often enough in a row to be left alone for a while.
+ * <p>
+ * A node left alone is tried again once its open time is over, a single failure then opens it again right away.
+ *
+ * @author caoyixiong
+ */
+class BackendNode {
+    /**
+     * Weight of the newest latency sample.
+     */
+    private static final double DECAY = 0.3;
+
+    private final String ipPort;
+    private final String url;
+    private final int failureThreshold;
+    private final long openMillis;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private volatile double latency = 0;
+    private volatile long openUntil = 0;
+    private int consecutiveFailures = 0;
+
+    BackendNode(String ipPort, int failureThreshold, long openMillis) {
+        this.ipPort = ipPort;
+        this.url = "http://" + ipPort;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMillis = openMillis;
+    }
+
+    String getIpPort() {
+        return ipPort;
+    }
+
+    String getUrl() {
+        return url;
+    }
+
+    boolean isAvailable(long now) {
+        return now >= openUntil;
+    }
+
+    long getOpenUntil() {
+        return openUntil;
+    }
+
+    /**
+     * @return the cost of sending one more request to this node, lower is better.
+     */
+    double getLoad() {
+        return (latency + 1) * (outstanding.get() + 1);
+    }
+
+    /**
+     * @return the start time of the request, passed back to {@link #succeeded(long)} or {@link #failed(long)}.
+     */
+    long start() {
+        outstanding.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    synchronized void succeeded(long startTime) {
+        outstanding.decrementAndGet();
+        sample(startTime);
+        consecutiveFailures = 0;
+        openUntil = 0;
+    }
+
+    /**
+     * A failure counts its elapsed time as latency too, so a node timing out loses its share before it is opened.
+     */
+    synchronized void failed(long startTime) {
+        outstanding.decrementAndGet();
+        sample(startTime);
+        if (++consecutiveFailures >= failureThreshold) {
+            openUntil = System.currentTimeMillis() + openMillis;
+        }
+    }
+
+    private void sample(long startTime) {
+        double elapsed = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTime) / 1000.0;
+        latency = latency == 0 ? elapsed : latency + DECAY * (elapsed - latency);
+    }
+
+    @Override
+    public String toString() {
+        return ipPort;
+    }
+}
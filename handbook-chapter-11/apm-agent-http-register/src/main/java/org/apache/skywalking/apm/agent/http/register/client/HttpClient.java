@@ -18,54 +18,306 @@
 
 package org.apache.skywalking.apm.agent.http.register.client;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
+import org.apache.skywalking.apm.agent.http.register.HttpRegisterConfig;
 import org.apache.skywalking.apm.dependencies.com.google.gson.Gson;
+import org.apache.skywalking.apm.dependencies.com.google.protobuf.Message;
+import org.apache.skywalking.apm.dependencies.com.google.protobuf.Parser;
 import org.apache.skywalking.apm.util.StringUtil;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 /**
+ * Sends the register requests to the backend nodes over pooled keep-alive connections, as json or as protobuf
+ * messages. Each request goes to the less loaded of two random healthy nodes, and is retried on another node when
+ * the first one doesn't answer.
+ * <p>
+ * Every response is read to the end and closed, so its connection goes back to the pool instead of being leaked, and
+ * idle connections are evicted before the backend or a proxy silently drops them.
+ *
  * @author caoyixiong
  */
 public enum HttpClient {
     INSTANCE;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String GZIP = "gzip";
+    private static final ContentType PROTOBUF = ContentType.create("application/x-protobuf");
+
     private CloseableHttpClient closeableHttpClient;
     private Gson gson;
     private String backendRegisterAddress;
+    private BackendNode[] nodes;
 
     HttpClient() {
-        closeableHttpClient = HttpClients.createDefault();
         gson = new Gson();
         backendRegisterAddress = System.getProperties().getProperty("backendRegisterAddress");
         if (StringUtil.isEmpty(backendRegisterAddress)) {
             throw new RuntimeException("load http register plugin, but backendRegisterAddress is null");
         }
+        List<BackendNode> backendNodes = new ArrayList<BackendNode>();
+        for (String ipPort : backendRegisterAddress.split(",")) {
+            if (!StringUtil.isEmpty(ipPort.trim())) {
+                backendNodes.add(new BackendNode(ipPort.trim(), HttpRegisterConfig.CIRCUIT_BREAKER_FAILURES,
+                    TimeUnit.SECONDS.toMillis(HttpRegisterConfig.CIRCUIT_BREAKER_OPEN_TIME)));
+            }
+        }
+        if (backendNodes.isEmpty()) {
+            throw new RuntimeException("load http register plugin, but backendRegisterAddress has no address");
+        }
+        nodes = backendNodes.toArray(new BackendNode[backendNodes.size()]);
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+            HttpRegisterConfig.KEEP_ALIVE, TimeUnit.SECONDS);
+        connectionManager.setMaxTotal(HttpRegisterConfig.MAX_CONNECTIONS);
+        connectionManager.setDefaultMaxPerRoute(HttpRegisterConfig.MAX_CONNECTIONS_PER_NODE);
+        // a connection idle for a while is checked before reuse, in case the backend closed it
+        connectionManager.setValidateAfterInactivity(2000);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(HttpRegisterConfig.CONNECT_TIMEOUT)
+            .setSocketTimeout(HttpRegisterConfig.READ_TIMEOUT)
+            .setConnectionRequestTimeout(HttpRegisterConfig.CONNECTION_REQUEST_TIMEOUT)
+            .build();
+
+        closeableHttpClient = HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+                @Override
+                public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                    long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return duration > 0 ? duration : TimeUnit.SECONDS.toMillis(HttpRegisterConfig.KEEP_ALIVE);
+                }
+            })
+            .evictExpiredConnections()
+            .evictIdleConnections(HttpRegisterConfig.KEEP_ALIVE, TimeUnit.SECONDS)
+            .disableCookieManagement()
+            .build();
     }
 
     public String execute(String path, Object data) throws IOException {
-        HttpPost httpPost = new HttpPost("http://" + getIpPort() + path);
-        httpPost.setEntity(new StringEntity(gson.toJson(data)));
-        CloseableHttpResponse response = closeableHttpClient.execute(httpPost);
-        HttpEntity httpEntity = response.getEntity();
-        return EntityUtils.toString(httpEntity);
-    }
-
-    public String getIpPort() {
-        if (!StringUtil.isEmpty(backendRegisterAddress)) {
-            String[] ipPorts = backendRegisterAddress.split(",");
-            if (ipPorts.length == 0) {
-                return null;
+        return new String(post(path, gson.toJson(data).getBytes(UTF_8), ContentType.APPLICATION_JSON), UTF_8);
+    }
+
+    /**
+     * Post the request in the protobuf wire format, the backend answers in the same format.
+     */
+    public <T extends Message> T execute(String path, Message request, Parser<T> parser) throws IOException {
+        return parser.parseFrom(post(path, request.toByteArray(), PROTOBUF));
+    }
+
+    /**
+     * Post a body of several length delimited protobuf messages, the backend answers in the same way.
+     */
+    public byte[] executeProtobuf(String path, byte[] body) throws IOException {
+        return post(path, body, PROTOBUF);
+    }
+
+    /**
+     * Get the resource as json.
+     */
+    public String get(String pathAndQuery) throws IOException {
+        return new String(get(pathAndQuery, ContentType.APPLICATION_JSON), UTF_8);
+    }
+
+    /**
+     * Get the resource as a protobuf message.
+     */
+    public <T extends Message> T get(String pathAndQuery, Parser<T> parser) throws IOException {
+        return parser.parseFrom(get(pathAndQuery, PROTOBUF));
+    }
+
+    private byte[] get(String pathAndQuery, ContentType accept) throws IOException {
+        HttpGet httpGet = new HttpGet();
+        httpGet.setHeader(HttpHeaders.ACCEPT, accept.getMimeType());
+        return execute(httpGet, pathAndQuery);
+    }
+
+    private byte[] post(String path, byte[] body, ContentType contentType) throws IOException {
+        HttpPost httpPost = new HttpPost();
+        httpPost.setHeader(HttpHeaders.ACCEPT, contentType.getMimeType());
+        httpPost.setEntity(createEntity(body, contentType, httpPost));
+        return execute(httpPost, path);
+    }
+
+    /**
+     * Send the request to the node picked by {@link #select(BackendNode)}, and once more to another node if the first
+     * one failed to answer or answered a server error.
+     */
+    private byte[] execute(HttpRequestBase request, String path) throws IOException {
+        BackendNode node = select(null);
+        try {
+            return execute(node, request, path);
+        } catch (IOException e) {
+            if (nodes.length == 1 || !isNodeFailure(e)) {
+                throw e;
+            }
+            request.reset();
+            return execute(select(node), request, path);
+        }
+    }
+
+    private byte[] execute(BackendNode node, HttpRequestBase request, String path) throws IOException {
+        request.setURI(URI.create(node.getUrl() + path));
+        long startTime = node.start();
+        boolean healthy = false;
+        try {
+            byte[] body = fetch(request, path);
+            healthy = true;
+            return body;
+        } catch (HttpStatusException e) {
+            healthy = e.getStatusCode() < 500;
+            throw e;
+        } finally {
+            if (healthy) {
+                node.succeeded(startTime);
+            } else {
+                node.failed(startTime);
+            }
+        }
+    }
+
+    /**
+     * @throws HttpStatusException if the backend answered but not with a success, any other exception means the body
+     * failed to arrive, no matter how the status looked.
+     */
+    private byte[] fetch(HttpRequestBase request, String path) throws IOException {
+        CloseableHttpResponse response = closeableHttpClient.execute(request);
+        try {
+            HttpEntity httpEntity = response.getEntity();
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode < 200 || statusCode >= 300) {
+                EntityUtils.consume(httpEntity);
+                throw new HttpStatusException(path, statusCode, retryAfterOf(response));
+            }
+            return httpEntity == null ? new byte[0] : EntityUtils.toByteArray(httpEntity);
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * @return the delay-seconds of the Retry-After header, -1 if there is none. An http-date is ignored.
+     */
+    private static int retryAfterOf(HttpResponse response) {
+        Header retryAfter = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+        if (retryAfter == null) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(retryAfter.getValue().trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static boolean isNodeFailure(IOException e) {
+        return !(e instanceof HttpStatusException) || ((HttpStatusException)e).getStatusCode() >= 500;
+    }
+
+    private HttpEntity createEntity(byte[] body, ContentType contentType, HttpPost httpPost) throws IOException {
+        if (HttpRegisterConfig.GZIP && body.length >= HttpRegisterConfig.GZIP_MIN_SIZE) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 64);
+            GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+            gzip.write(body);
+            gzip.close();
+            httpPost.setHeader(HttpHeaders.CONTENT_ENCODING, GZIP);
+            body = compressed.toByteArray();
+        }
+        return new ByteArrayEntity(body, contentType);
+    }
+
+    /**
+     * Pick the less loaded of two random nodes not left alone by their circuit breaker, the power of two choices. When
+     * every node is left alone, the one to be tried again first is picked.
+     *
+     * @param excluded the node which just failed, or null.
+     */
+    private BackendNode select(BackendNode excluded) {
+        if (nodes.length == 1) {
+            return nodes[0];
+        }
+        long now = System.currentTimeMillis();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        BackendNode first = null;
+        BackendNode second = null;
+        int available = 0;
+        for (BackendNode node : nodes) {
+            if (node == excluded || !node.isAvailable(now)) {
+                continue;
+            }
+            available++;
+            // reservoir sampling of two nodes
+            if (first == null) {
+                first = node;
+            } else if (second == null) {
+                second = node;
+            } else {
+                int slot = random.nextInt(available);
+                if (slot == 0) {
+                    first = node;
+                } else if (slot == 1) {
+                    second = node;
+                }
+            }
+        }
+        if (first == null) {
+            BackendNode earliest = null;
+            for (BackendNode node : nodes) {
+                if (node != excluded && (earliest == null || node.getOpenUntil() < earliest.getOpenUntil())) {
+                    earliest = node;
+                }
+            }
+            return earliest;
+        }
+        if (second == null) {
+            return first;
+        }
+        return first.getLoad() <= second.getLoad() ? first : second;
+    }
+
+    /**
+     * @return the backend nodes in a stable order, identifying the cluster the ids are resolved by.
+     */
+    public String getClusterIdentity() {
+        String[] ipPorts = new String[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            ipPorts[i] = nodes[i].getIpPort();
+        }
+        Arrays.sort(ipPorts);
+        StringBuilder identity = new StringBuilder();
+        for (String ipPort : ipPorts) {
+            if (identity.length() > 0) {
+                identity.append(',');
             }
-            ThreadLocalRandom random = ThreadLocalRandom.current();
-            return ipPorts[random.nextInt(0, ipPorts.length)];
+            identity.append(ipPort);
         }
-        return null;
+        return identity.toString();
     }
 }
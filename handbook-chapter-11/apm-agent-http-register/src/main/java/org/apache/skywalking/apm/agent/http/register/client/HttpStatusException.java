@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.apache.skywalking.apm.agent.http.register.client;
+
+import java.io.IOException;
+
+/**
+ * The backend answered a request with a status other than 2xx.
+ *
+ * @author caoyixiong
+ */
+public class HttpStatusException extends IOException {
+    private final int statusCode;
+    private final int retryAfter;
+
+    public HttpStatusException(String path, int statusCode) {
+        this(path, statusCode, -1);
+    }
+
+    public HttpStatusException(String path, int statusCode, int retryAfter) {
+        super("request " + path + " failure, http status: " + statusCode);
+        this.statusCode = statusCode;
+        this.retryAfter = retryAfter;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return the seconds the backend asked to wait before the next request, -1 if it didn't tell.
+     */
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+}
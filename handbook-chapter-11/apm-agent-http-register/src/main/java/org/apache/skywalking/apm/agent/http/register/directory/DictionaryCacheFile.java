@@ -0,0 +1,343 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.apache.skywalking.apm.agent.http.register.directory;
+
+import org.apache.skywalking.apm.agent.core.logging.api.ILog;
+import org.apache.skywalking.apm.agent.core.logging.api.LogManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The ids resolved by the dictionaries of a service against one backend cluster, kept in a fixed size, memory-mapped
+ * file, so a restarted agent doesn't register all of its endpoints and network addresses again. The file is laid out
+ * as
+ * <pre>
+ * | int magic | short identity length | identity | records... |
+ * </pre>
+ * and the records are appended as ids resolve,
+ * <pre>
+ * | int length | byte type | int id | int service id | byte span type | endpoint name |   (endpoint)
+ * | int length | byte type | int id | network address |                                 (network address)
+ * </pre>
+ * where length covers everything after itself. A zero length marks the end of the records, it is written after a
+ * record before the record's own length, so a crash in between leaves the record invisible. A record found broken when
+ * the file is opened ends the records there. A name resolved again is appended again, the stale records are dropped
+ * by a compaction when the file is opened or fills up.
+ * <p>
+ * The file is locked while it is open, the agents of one service on the same host don't share it.
+ *
+ * @author caoyixiong
+ */
+public class DictionaryCacheFile {
+    private static final ILog logger = LogManager.getLogger(DictionaryCacheFile.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final int MAGIC = 0x53574443;
+    private static final byte ENDPOINT = 1;
+    private static final byte NETWORK_ADDRESS = 2;
+    private static final int ENDPOINT_HEADER_SIZE = 1 + 4 + 4 + 1;
+    private static final int NETWORK_ADDRESS_HEADER_SIZE = 1 + 4;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final byte[] identity;
+    private final int recordsPosition;
+    private int writePosition;
+    private boolean full = false;
+
+    private DictionaryCacheFile(RandomAccessFile file, MappedByteBuffer buffer, byte[] identity) {
+        this.file = file;
+        this.buffer = buffer;
+        this.identity = identity;
+        this.recordsPosition = 4 + 2 + identity.length;
+    }
+
+    /**
+     * Open the file of the service and the backend cluster, a file written for anything else is started over.
+     *
+     * @param backendAddress identifies the backend cluster, the ids of one cluster mean nothing to another.
+     * @return null if another agent holds the file.
+     */
+    public static DictionaryCacheFile open(File dir, String serviceName, String backendAddress, int size) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("can't create dictionary cache directory " + dir.getAbsolutePath());
+        }
+        String identity = serviceName + "@" + backendAddress;
+        File file = new File(dir, "dictionary-" + Integer.toHexString(identity.hashCode()) + ".cache");
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        DictionaryCacheFile cacheFile;
+        try {
+            if (!tryLock(randomAccessFile.getChannel())) {
+                logger.info("dictionary cache file {} is held by another agent, the resolved ids are kept in memory only.", file.getAbsolutePath());
+                randomAccessFile.close();
+                return null;
+            }
+            randomAccessFile.setLength(size);
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            cacheFile = new DictionaryCacheFile(randomAccessFile, buffer, identity.getBytes(UTF_8));
+            if (cacheFile.recordsPosition + 4 > size) {
+                throw new IOException("dictionary cache size " + size + " is too small");
+            }
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+        if (cacheFile.isWrittenFor()) {
+            cacheFile.recover();
+            int dropped = cacheFile.compact();
+            if (dropped > 0) {
+                logger.info("compact dictionary cache file {}, {} stale records dropped", file.getAbsolutePath(), dropped);
+            }
+        } else {
+            logger.info("start dictionary cache file {} over for {}", file.getAbsolutePath(), identity);
+            cacheFile.reset();
+        }
+        return cacheFile;
+    }
+
+    /**
+     * The lock is held until the file is closed, or the JVM exits.
+     */
+    private static boolean tryLock(FileChannel channel) throws IOException {
+        try {
+            FileLock lock = channel.tryLock();
+            return lock != null;
+        } catch (OverlappingFileLockException e) {
+            // held by another agent in this JVM
+            return false;
+        }
+    }
+
+    /**
+     * Find the end of the records written by the previous run, the records end at the first broken one.
+     */
+    private void recover() {
+        int position = recordsPosition;
+        while (position + 4 <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length == 0) {
+                break;
+            }
+            if (!isValid(position, length)) {
+                logger.warn("truncate the dictionary cache at the broken record at {}", position);
+                buffer.putInt(position, 0);
+                break;
+            }
+            position += 4 + length;
+        }
+        writePosition = position;
+    }
+
+    /**
+     * @return true if the record fits in the file, and its type is known and fits in the record.
+     */
+    private boolean isValid(int position, int length) {
+        // keep room for the zero length terminating the records
+        if (length <= 0 || length > buffer.capacity() - position - 4 - 4) {
+            return false;
+        }
+        byte type = buffer.get(position + 4);
+        if (type == ENDPOINT) {
+            return length >= ENDPOINT_HEADER_SIZE;
+        }
+        return type == NETWORK_ADDRESS && length >= NETWORK_ADDRESS_HEADER_SIZE;
+    }
+
+    private boolean isWrittenFor() {
+        if (buffer.getInt(0) != MAGIC || buffer.getShort(4) != identity.length) {
+            return false;
+        }
+        for (int i = 0; i < identity.length; i++) {
+            if (buffer.get(6 + i) != identity[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Pass every record written so far to the replayer. The records are checked again, a record which is still
+     * broken throws {@link IllegalStateException}.
+     */
+    public synchronized void replay(Replayer replayer) {
+        int position = recordsPosition;
+        while (position < writePosition) {
+            int length = buffer.getInt(position);
+            if (!isValid(position, length) || position + 4 + length > writePosition) {
+                throw new IllegalStateException("broken dictionary cache record at " + position);
+            }
+            ByteBuffer record = buffer.duplicate();
+            record.position(position + 4);
+            record.limit(position + 4 + length);
+            byte type = record.get();
+            int id = record.getInt();
+            if (type == ENDPOINT) {
+                int serviceId = record.getInt();
+                byte spanType = record.get();
+                replayer.endpoint(serviceId, readString(record, length - ENDPOINT_HEADER_SIZE), spanType, id);
+            } else {
+                replayer.networkAddress(readString(record, length - NETWORK_ADDRESS_HEADER_SIZE), id);
+            }
+            position += 4 + length;
+        }
+    }
+
+    public synchronized void appendEndpoint(int serviceId, String endpointName, int spanType, int endpointId) {
+        byte[] name = endpointName.getBytes(UTF_8);
+        ByteBuffer record = allocate(ENDPOINT_HEADER_SIZE + name.length);
+        if (record != null) {
+            record.put(ENDPOINT).putInt(endpointId).putInt(serviceId).put((byte)spanType).put(name);
+            commit(record);
+        }
+    }
+
+    public synchronized void appendNetworkAddress(String networkAddress, int addressId) {
+        byte[] address = networkAddress.getBytes(UTF_8);
+        ByteBuffer record = allocate(NETWORK_ADDRESS_HEADER_SIZE + address.length);
+        if (record != null) {
+            record.put(NETWORK_ADDRESS).putInt(addressId).put(address);
+            commit(record);
+        }
+    }
+
+    /**
+     * Forget all the records, the backend has reset the ids of this agent.
+     */
+    public synchronized void reset() {
+        buffer.putInt(recordsPosition, 0);
+        buffer.putShort(4, (short)identity.length);
+        for (int i = 0; i < identity.length; i++) {
+            buffer.put(6 + i, identity[i]);
+        }
+        buffer.putInt(0, MAGIC);
+        writePosition = recordsPosition;
+        full = false;
+    }
+
+    public synchronized void force() {
+        buffer.force();
+    }
+
+    /**
+     * Flush the records and release the lock of the file.
+     */
+    public synchronized void close() {
+        buffer.force();
+        try {
+            file.close();
+        } catch (IOException e) {
+            logger.warn("close dictionary cache file failure: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * @return the buffer positioned at the record body, or null if the file has no room left for it.
+     */
+    private ByteBuffer allocate(int length) {
+        if (!hasRoom(length) && !full) {
+            int dropped = compact();
+            // a file mostly holding live records would be compacted again on nearly every append
+            full = writePosition - recordsPosition > (buffer.capacity() - recordsPosition) / 4 * 3;
+            if (full) {
+                logger.warn("dictionary cache file is full, the ids resolved from now on are not cached.");
+            } else {
+                logger.info("compact dictionary cache file, {} stale records dropped", dropped);
+            }
+        }
+        if (!hasRoom(length)) {
+            return null;
+        }
+        ByteBuffer record = buffer.duplicate();
+        record.position(writePosition + 4);
+        record.limit(writePosition + 4 + length);
+        return record;
+    }
+
+    private boolean hasRoom(int length) {
+        // keep room for the zero length terminating the records
+        return writePosition + 4 + length + 4 <= buffer.capacity();
+    }
+
+    /**
+     * Rewrite the records keeping only the latest one of every name, a name evicted and resolved again, or resolved
+     * again after a restart, is appended once more otherwise. The records are rewritten in order from the start, each
+     * one terminated before it becomes visible, so a crash in between only loses the records not rewritten yet.
+     *
+     * @return the count of records dropped.
+     */
+    private int compact() {
+        Map<String, byte[]> live = new LinkedHashMap<String, byte[]>();
+        int count = 0;
+        int position = recordsPosition;
+        while (position < writePosition) {
+            int length = buffer.getInt(position);
+            byte[] body = new byte[length];
+            ByteBuffer record = buffer.duplicate();
+            record.position(position + 4);
+            record.get(body);
+            // the type and everything after the id, lossless as ISO-8859-1
+            String key = body[0] + "|" + new String(body, 5, length - 5, ISO_8859_1);
+            live.remove(key);
+            live.put(key, body);
+            count++;
+            position += 4 + length;
+        }
+        if (live.size() == count) {
+            return 0;
+        }
+        buffer.putInt(recordsPosition, 0);
+        writePosition = recordsPosition;
+        for (byte[] body : live.values()) {
+            ByteBuffer record = buffer.duplicate();
+            record.position(writePosition + 4);
+            record.put(body);
+            commit(record);
+        }
+        return count - live.size();
+    }
+
+    private void commit(ByteBuffer record) {
+        int length = record.position() - writePosition - 4;
+        buffer.putInt(writePosition + 4 + length, 0);
+        buffer.putInt(writePosition, length);
+        writePosition += 4 + length;
+    }
+
+    private static String readString(ByteBuffer record, int length) {
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    public interface Replayer {
+        void endpoint(int serviceId, String endpointName, int spanType, int endpointId);
+
+        void networkAddress(String networkAddress, int addressId);
+    }
+}
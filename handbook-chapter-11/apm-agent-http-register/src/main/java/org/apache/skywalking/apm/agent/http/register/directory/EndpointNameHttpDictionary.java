@@ -19,27 +19,34 @@
 package org.apache.skywalking.apm.agent.http.register.directory;
 
 
-import org.apache.skywalking.apm.agent.core.dictionary.Found;
-import org.apache.skywalking.apm.agent.core.dictionary.NotFound;
 import org.apache.skywalking.apm.agent.core.dictionary.PossibleFound;
 import org.apache.skywalking.apm.agent.core.logging.api.ILog;
 import org.apache.skywalking.apm.agent.core.logging.api.LogManager;
+import org.apache.skywalking.apm.agent.http.register.HttpRegisterConfig;
 import org.apache.skywalking.apm.agent.http.register.client.HttpClient;
 import org.apache.skywalking.apm.dependencies.com.google.gson.Gson;
 import org.apache.skywalking.apm.dependencies.com.google.gson.JsonArray;
 import org.apache.skywalking.apm.dependencies.com.google.gson.JsonElement;
 import org.apache.skywalking.apm.dependencies.com.google.gson.JsonObject;
-import org.apache.skywalking.apm.dependencies.io.netty.util.internal.ConcurrentSet;
+import org.apache.skywalking.apm.network.common.DetectPoint;
 import org.apache.skywalking.apm.network.language.agent.SpanType;
+import org.apache.skywalking.apm.network.register.v2.Endpoint;
+import org.apache.skywalking.apm.network.register.v2.EndpointMapping;
+import org.apache.skywalking.apm.network.register.v2.EndpointMappingElement;
+import org.apache.skywalking.apm.network.register.v2.Enpoints;
 
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.apache.skywalking.apm.agent.core.conf.Config.Dictionary.ENDPOINT_NAME_BUFFER_SIZE;
 
 /**
+ * Endpoint ids by service, name and kind. The lookups of the application threads allocate nothing: the tables are
+ * found by a scan of a small array, the names by {@link String}'s cached hash, and the results are created once when
+ * the ids resolve.
+ *
  * @author wusheng
  */
 public enum EndpointNameHttpDictionary {
@@ -47,16 +54,25 @@ public enum EndpointNameHttpDictionary {
     private static final ILog logger = LogManager.getLogger(EndpointNameHttpDictionary.class);
 
     private static final String ENDPOINT_REGISTER_PATH = "/v6/endpoint/register";
+    private static final String ENDPOINT_SNAPSHOT_PATH = "/v6/endpoint/snapshot";
 
     private static final String SERVICE_ID = "si";
     private static final String ENDPOINT_NAME = "en";
     private static final String ENDPOINT_ID = "ei";
     private static final String SPAN_TYPE = "st";
+    private static final String OFFSET = "of";
+    private static final String PAGE_SIZE = "ps";
 
     private Gson gson = new Gson();
 
-    private Map<OperationNameKey, Integer> endpointDictionary = new ConcurrentHashMap<OperationNameKey, Integer>();
-    private Set<OperationNameKey> unRegisterEndpoints = new ConcurrentSet<OperationNameKey>();
+    /**
+     * Copy on write, an agent knows one or a few services.
+     */
+    private volatile ServiceEndpointTable[] tables = new ServiceEndpointTable[0];
+    private final AtomicInteger endpointCount = new AtomicInteger();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final FrequencyAdmission admission = new FrequencyAdmission(ENDPOINT_NAME_BUFFER_SIZE);
+    private volatile DictionaryCacheFile cacheFile;
 
     public PossibleFound findOrPrepare4Register(int serviceId, String endpointName,
                                                 boolean isEntry, boolean isExit) {
@@ -70,127 +86,284 @@ public enum EndpointNameHttpDictionary {
     private PossibleFound find0(int serviceId, String endpointName,
                                 boolean isEntry, boolean isExit, boolean registerWhenNotFound) {
         if (endpointName == null || endpointName.length() == 0) {
-            return new NotFound();
+            return ServiceEndpointTable.NOT_FOUND;
         }
-        OperationNameKey key = new OperationNameKey(serviceId, endpointName, isEntry, isExit);
-        Integer operationId = endpointDictionary.get(key);
-        if (operationId != null) {
-            return new Found(operationId);
-        } else {
-            if (registerWhenNotFound &&
-                    endpointDictionary.size() + unRegisterEndpoints.size() < ENDPOINT_NAME_BUFFER_SIZE) {
-                unRegisterEndpoints.add(key);
+        int hash = ServiceEndpointTable.hashOf(serviceId, endpointName);
+        ServiceEndpointTable table = tableOf(serviceId);
+        ServiceEndpointTable.Slots slots = table == null ? null : table.get(endpointName);
+        if (slots == null) {
+            if (!registerWhenNotFound || !admission.admit(hash, endpointCount.get())) {
+                admission.recordMiss(hash);
+                return ServiceEndpointTable.NOT_FOUND;
             }
-            return new NotFound();
+            slots = slotsOf(serviceId, endpointName);
         }
+        int kind = ServiceEndpointTable.kindOf(isEntry, isExit);
+        PossibleFound result = slots.get(kind);
+        if (result == ServiceEndpointTable.NOT_FOUND) {
+            admission.recordMiss(hash);
+            if (registerWhenNotFound && slots.markPending(kind)) {
+                pendingCount.incrementAndGet();
+            }
+        } else {
+            admission.recordHit(hash);
+        }
+        return result;
     }
 
-    public void syncRemoteDictionary() throws IOException {
-        if (unRegisterEndpoints.size() > 0) {
-
-            JsonArray unRegisterEndpointArray = new JsonArray();
-            for (OperationNameKey operationNameKey : unRegisterEndpoints) {
-                JsonObject jsonObject = new JsonObject();
-                jsonObject.addProperty(SERVICE_ID, operationNameKey.getServiceId());
-                jsonObject.addProperty(ENDPOINT_NAME, operationNameKey.getEndpointName());
-                jsonObject.addProperty(SPAN_TYPE, operationNameKey.getSpanType());
-                unRegisterEndpointArray.add(jsonObject);
+    private ServiceEndpointTable tableOf(int serviceId) {
+        for (ServiceEndpointTable table : tables) {
+            if (table.getServiceId() == serviceId) {
+                return table;
             }
+        }
+        return null;
+    }
 
-            String response = HttpClient.INSTANCE.execute(ENDPOINT_REGISTER_PATH, unRegisterEndpointArray);
-            JsonArray array = gson.fromJson(response, JsonArray.class);
-
-            if (array != null && array.size() > 0) {
-                for (JsonElement element : array) {
-                    JsonObject jsonObject = element.getAsJsonObject();
-                    int serviceId = jsonObject.get(SERVICE_ID).getAsInt();
-                    String endpointName = jsonObject.get(ENDPOINT_NAME).getAsString();
-                    int spanType = jsonObject.get(SPAN_TYPE).getAsInt();
-                    int endpointId = jsonObject.get(ENDPOINT_ID).getAsInt();
-
-                    OperationNameKey key = new OperationNameKey(
-                            serviceId,
-                            endpointName,
-                            spanType == SpanType.Entry_VALUE,
-                            spanType == SpanType.Exit_VALUE);
-                    unRegisterEndpoints.remove(key);
-                    endpointDictionary.put(key, endpointId);
+    private ServiceEndpointTable.Slots slotsOf(int serviceId, String endpointName) {
+        ServiceEndpointTable table = tableOf(serviceId);
+        if (table == null) {
+            synchronized (this) {
+                table = tableOf(serviceId);
+                if (table == null) {
+                    table = new ServiceEndpointTable(serviceId);
+                    ServiceEndpointTable[] grown = new ServiceEndpointTable[tables.length + 1];
+                    System.arraycopy(tables, 0, grown, 0, tables.length);
+                    grown[tables.length] = table;
+                    tables = grown;
                 }
             }
         }
+        ServiceEndpointTable.Slots slots = table.get(endpointName);
+        if (slots == null) {
+            ServiceEndpointTable.Slots created = new ServiceEndpointTable.Slots();
+            slots = table.putIfAbsent(endpointName, created);
+            if (slots == null) {
+                // only the thread which inserted the name counts it, a concurrent lookup of the same name doesn't
+                slots = created;
+                endpointCount.incrementAndGet();
+            }
+        }
+        return slots;
+    }
+
+    public void syncRemoteDictionary() throws IOException {
+        if (pendingCount.get() > 0) {
+            if (HttpRegisterConfig.PROTOBUF) {
+                syncByProtobuf();
+            } else {
+                syncByJson();
+            }
+        }
     }
 
-    private class OperationNameKey {
-        private int serviceId;
-        private String endpointName;
-        private boolean isEntry;
-        private boolean isExit;
+    private void syncByJson() throws IOException {
+        String response = HttpClient.INSTANCE.execute(ENDPOINT_REGISTER_PATH, unRegisterEndpointsAsJson());
+        registeredFromJson(gson.fromJson(response, JsonArray.class));
+    }
 
-        public OperationNameKey(int serviceId, String endpointName, boolean isEntry, boolean isExit) {
-            this.serviceId = serviceId;
-            this.endpointName = endpointName;
-            this.isEntry = isEntry;
-            this.isExit = isExit;
+    private void syncByProtobuf() throws IOException {
+        registeredFromProtobuf(HttpClient.INSTANCE.execute(ENDPOINT_REGISTER_PATH, unRegisterEndpointsAsProtobuf(), EndpointMapping.parser()));
+    }
+
+    /**
+     * Fill the dictionary with the entry endpoints the backend already knows for the service, page by page, so the
+     * spans of a restarted agent carry ids at once instead of after the endpoints are registered again.
+     *
+     * @return the number of endpoints loaded.
+     */
+    public int loadSnapshot(int serviceId, int pageSize) throws IOException {
+        int offset = 0;
+        while (endpointCount.get() < ENDPOINT_NAME_BUFFER_SIZE) {
+            String pathAndQuery = ENDPOINT_SNAPSHOT_PATH + "?" + SERVICE_ID + "=" + serviceId
+                + "&" + OFFSET + "=" + offset + "&" + PAGE_SIZE + "=" + pageSize;
+            int loaded;
+            if (HttpRegisterConfig.PROTOBUF) {
+                EndpointMapping mapping = HttpClient.INSTANCE.get(pathAndQuery, EndpointMapping.parser());
+                registeredFromProtobuf(mapping);
+                loaded = mapping.getElementsCount();
+            } else {
+                JsonArray page = gson.fromJson(HttpClient.INSTANCE.get(pathAndQuery), JsonArray.class);
+                registeredFromJson(page);
+                loaded = page == null ? 0 : page.size();
+            }
+            offset += loaded;
+            if (loaded < pageSize) {
+                break;
+            }
         }
+        return offset;
+    }
 
-        public int getServiceId() {
-            return serviceId;
+    /**
+     * Age the lookup frequencies and evict the least frequently looked up names beyond the capacity, they are
+     * registered again if they turn hot. Called by the register thread.
+     */
+    public void evictOverflow() {
+        admission.age();
+        int excess = endpointCount.get() - admission.getCapacity();
+        if (excess <= 0) {
+            return;
+        }
+        int[] histogram = new int[FrequencySketch.MAX_FREQUENCY + 1];
+        for (ServiceEndpointTable table : tables) {
+            for (Map.Entry<String, ServiceEndpointTable.Slots> endpoint : table.entries()) {
+                histogram[admission.frequency(ServiceEndpointTable.hashOf(table.getServiceId(), endpoint.getKey()))]++;
+            }
+        }
+        int threshold = FrequencyAdmission.evictionThreshold(histogram, excess);
+        // every name below the threshold goes, the names at the threshold only as many as still needed
+        int thresholdQuota = excess;
+        for (int frequency = 0; frequency < threshold; frequency++) {
+            thresholdQuota -= histogram[frequency];
         }
 
-        public String getEndpointName() {
-            return endpointName;
+        int evicted = 0;
+        int pending = 0;
+        for (ServiceEndpointTable table : tables) {
+            Iterator<Map.Entry<String, ServiceEndpointTable.Slots>> endpoints = table.entries().iterator();
+            while (endpoints.hasNext()) {
+                Map.Entry<String, ServiceEndpointTable.Slots> endpoint = endpoints.next();
+                int frequency = admission.frequency(ServiceEndpointTable.hashOf(table.getServiceId(), endpoint.getKey()));
+                if (frequency < threshold || (frequency == threshold && thresholdQuota-- > 0)) {
+                    endpoints.remove();
+                    evicted++;
+                } else {
+                    pending += endpoint.getValue().getPendingCount();
+                }
+            }
         }
+        endpointCount.addAndGet(-evicted);
+        pendingCount.set(pending);
+        admission.evicted(evicted, threshold);
+    }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o)
-                return true;
-            if (o == null || getClass() != o.getClass())
-                return false;
+    /**
+     * @return size, hits, misses, evictions and rejected admissions.
+     */
+    public long[] getStatistics() {
+        return new long[] {endpointCount.get(), admission.getHits(), admission.getMisses(), admission.getEvictions(), admission.getRejections()};
+    }
 
-            OperationNameKey key = (OperationNameKey) o;
+    public boolean hasUnRegisterEndpoints() {
+        return pendingCount.get() > 0;
+    }
 
-            boolean isServiceEndpointMatch = false;
-            if (serviceId == key.serviceId && endpointName.equals(key.endpointName)) {
-                isServiceEndpointMatch = true;
+    public JsonArray unRegisterEndpointsAsJson() {
+        JsonArray unRegisterEndpointArray = new JsonArray();
+        for (ServiceEndpointTable table : tables) {
+            for (Map.Entry<String, ServiceEndpointTable.Slots> endpoint : table.entries()) {
+                for (int kind = ServiceEndpointTable.ENTRY; kind <= ServiceEndpointTable.LOCAL; kind++) {
+                    if (endpoint.getValue().isPending(kind)) {
+                        JsonObject jsonObject = new JsonObject();
+                        jsonObject.addProperty(SERVICE_ID, table.getServiceId());
+                        jsonObject.addProperty(ENDPOINT_NAME, endpoint.getKey());
+                        jsonObject.addProperty(SPAN_TYPE, spanTypeOf(kind));
+                        unRegisterEndpointArray.add(jsonObject);
+                    }
+                }
             }
-            return isServiceEndpointMatch && isEntry == key.isEntry
-                    && isExit == key.isExit;
         }
+        return unRegisterEndpointArray;
+    }
+
+    public void registeredFromJson(JsonArray array) {
+        if (array != null && array.size() > 0) {
+            for (JsonElement element : array) {
+                JsonObject jsonObject = element.getAsJsonObject();
+                int serviceId = jsonObject.get(SERVICE_ID).getAsInt();
+                String endpointName = jsonObject.get(ENDPOINT_NAME).getAsString();
+                int spanType = jsonObject.get(SPAN_TYPE).getAsInt();
+                int endpointId = jsonObject.get(ENDPOINT_ID).getAsInt();
 
-        @Override
-        public int hashCode() {
-            int result = serviceId;
-            result = 31 * result + endpointName.hashCode();
-            return result;
+                registered(serviceId, endpointName, kindOfSpanType(spanType), endpointId, true);
+            }
         }
+    }
 
-        boolean isEntry() {
-            return isEntry;
+    public Enpoints unRegisterEndpointsAsProtobuf() {
+        Enpoints.Builder request = Enpoints.newBuilder();
+        for (ServiceEndpointTable table : tables) {
+            for (Map.Entry<String, ServiceEndpointTable.Slots> endpoint : table.entries()) {
+                for (int kind = ServiceEndpointTable.ENTRY; kind <= ServiceEndpointTable.LOCAL; kind++) {
+                    if (endpoint.getValue().isPending(kind)) {
+                        request.addEndpoints(Endpoint.newBuilder()
+                                .setServiceId(table.getServiceId())
+                                .setEndpointName(endpoint.getKey())
+                                .setFromValue(detectPointOf(kind)));
+                    }
+                }
+            }
         }
+        return request.build();
+    }
 
-        boolean isExit() {
-            return isExit;
+    public void registeredFromProtobuf(EndpointMapping mapping) {
+        for (EndpointMappingElement element : mapping.getElementsList()) {
+            int kind = element.getFromValue() == DetectPoint.server_VALUE ? ServiceEndpointTable.ENTRY
+                    : (element.getFromValue() == DetectPoint.client_VALUE ? ServiceEndpointTable.EXIT : ServiceEndpointTable.LOCAL);
+            registered(element.getServiceId(), element.getEndpointName(), kind, element.getEndpointId(), true);
         }
+    }
 
-        int getSpanType() {
-            if (isEntry) {
-                return SpanType.Entry.getNumber();
-            } else if (isExit) {
-                return SpanType.Exit.getNumber();
-            } else {
-                return SpanType.UNRECOGNIZED.getNumber();
-            }
+    private void registered(int serviceId, String endpointName, int kind, int endpointId, boolean cache) {
+        ServiceEndpointTable.Slots slots = slotsOf(serviceId, endpointName);
+        boolean changed = slots.resolve(kind, endpointId);
+        if (slots.clearPending(kind)) {
+            pendingCount.decrementAndGet();
         }
+        DictionaryCacheFile file = cacheFile;
+        if (cache && changed && file != null) {
+            file.appendEndpoint(serviceId, endpointName, spanTypeOf(kind), endpointId);
+        }
+    }
+
+    /**
+     * Take an id resolved by the previous run of the agent.
+     */
+    public void restore(int serviceId, String endpointName, int spanType, int endpointId) {
+        registered(serviceId, endpointName, kindOfSpanType(spanType), endpointId, false);
+    }
+
+    /**
+     * Keep the ids resolved from now on in the given file too.
+     */
+    public void cacheTo(DictionaryCacheFile cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+
+    public synchronized void clear() {
+        tables = new ServiceEndpointTable[0];
+        endpointCount.set(0);
+        pendingCount.set(0);
+    }
+
+    private static int kindOfSpanType(int spanType) {
+        return ServiceEndpointTable.kindOf(spanType == SpanType.Entry_VALUE, spanType == SpanType.Exit_VALUE);
+    }
+
+    private static int spanTypeOf(int kind) {
+        switch (kind) {
+            case ServiceEndpointTable.ENTRY:
+                return SpanType.Entry_VALUE;
+            case ServiceEndpointTable.EXIT:
+                return SpanType.Exit_VALUE;
+            default:
+                return SpanType.Local_VALUE;
+        }
+    }
 
-        @Override
-        public String toString() {
-            return "OperationNameKey{" +
-                    "serviceId=" + serviceId +
-                    ", endpointName='" + endpointName + '\'' +
-                    ", isEntry=" + isEntry +
-                    ", isExit=" + isExit +
-                    '}';
+    /**
+     * @return the detect point of the protobuf wire format, -1 for the local spans, which it has no value for.
+     */
+    private static int detectPointOf(int kind) {
+        switch (kind) {
+            case ServiceEndpointTable.ENTRY:
+                return DetectPoint.server_VALUE;
+            case ServiceEndpointTable.EXIT:
+                return DetectPoint.client_VALUE;
+            default:
+                return -1;
         }
     }
 }
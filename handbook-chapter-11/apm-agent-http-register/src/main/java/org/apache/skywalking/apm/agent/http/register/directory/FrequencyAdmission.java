@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.apache.skywalking.apm.agent.http.register.directory;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides which names a full dictionary takes and which it evicts, by their lookup frequency, and counts how it went.
+ * <p>
+ * Below its capacity a dictionary takes every new name. Above it, a new name is only taken when it is looked up more
+ * often than the names the last eviction left at the bottom, and the register thread evicts the coldest names back
+ * down to the capacity on its next tick. The names taken in between are bounded by a sixteenth of the capacity.
+ *
+ * @author caoyixiong
+ */
+class FrequencyAdmission {
+    private static final int HITS = 0;
+    private static final int MISSES = 1;
+    /**
+     * Counters of one stripe, a whole 64 bytes cache line.
+     */
+    private static final int STRIDE = 8;
+
+    private final int capacity;
+    private final int hardLimit;
+    private final FrequencySketch sketch;
+    private final AtomicLongArray lookups;
+    private final int stripeMask;
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private volatile int victimFrequency = 0;
+
+    FrequencyAdmission(int capacity) {
+        this.capacity = capacity;
+        this.hardLimit = capacity + Math.max(capacity / 16, 16);
+        this.sketch = new FrequencySketch(capacity);
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() && stripes < 16) {
+            stripes <<= 1;
+        }
+        this.stripeMask = stripes - 1;
+        // one padding stride before the first stripe, so it doesn't share a line with the array header
+        this.lookups = new AtomicLongArray((stripes + 1) * STRIDE);
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    void recordHit(int hash) {
+        sketch.increment(hash);
+        lookups.incrementAndGet(stripeBase() + HITS);
+    }
+
+    void recordMiss(int hash) {
+        sketch.increment(hash);
+        lookups.incrementAndGet(stripeBase() + MISSES);
+    }
+
+    /**
+     * @return true if a new name may be taken by a dictionary holding size names.
+     */
+    boolean admit(int hash, int size) {
+        if (size < capacity) {
+            return true;
+        }
+        if (size < hardLimit && sketch.frequency(hash) > victimFrequency) {
+            return true;
+        }
+        rejections.incrementAndGet();
+        return false;
+    }
+
+    int frequency(int hash) {
+        return sketch.frequency(hash);
+    }
+
+    /**
+     * Called by the register thread before the frequencies are used for an eviction.
+     */
+    void age() {
+        sketch.age();
+    }
+
+    /**
+     * @param histogram the count of names by frequency.
+     * @return the frequency up to which names are evicted to drop the given count of names.
+     */
+    static int evictionThreshold(int[] histogram, int excess) {
+        int seen = 0;
+        for (int frequency = 0; frequency < histogram.length; frequency++) {
+            seen += histogram[frequency];
+            if (seen >= excess) {
+                return frequency;
+            }
+        }
+        return histogram.length - 1;
+    }
+
+    /**
+     * Called by the register thread after an eviction, the names left are at least as frequent as the threshold.
+     */
+    void evicted(int count, int threshold) {
+        evictions.addAndGet(count);
+        victimFrequency = threshold;
+    }
+
+    long getHits() {
+        return sum(HITS);
+    }
+
+    long getMisses() {
+        return sum(MISSES);
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    long getRejections() {
+        return rejections.get();
+    }
+
+    private int stripeBase() {
+        long id = Thread.currentThread().getId();
+        return ((int)(id ^ (id >>> 16)) & stripeMask) * STRIDE + STRIDE;
+    }
+
+    private long sum(int counter) {
+        long sum = 0;
+        for (int base = STRIDE; base < lookups.length(); base += STRIDE) {
+            sum += lookups.get(base + counter);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.apache.skywalking.apm.agent.http.register.directory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A count-min sketch of how often the names of a dictionary are looked up, with 4 bit counters packed in longs as
+ * described by TinyLFU. Once ten increments per counter row were recorded, {@link #age()} halves all the counters, so
+ * the frequencies follow what is hot now.
+ * <p>
+ * The sketch is sized by the dictionary capacity up to {@link #MAX_TABLE_LENGTH}, a large capacity only makes the
+ * frequencies less exact instead of taking memory in every instrumented JVM. The application threads update the
+ * packed counters by compare-and-set, so a racing increment never carries into a neighbouring counter, and only the
+ * register thread ages them.
+ *
+ * @author caoyixiong
+ */
+class FrequencySketch {
+    static final int MAX_FREQUENCY = 15;
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    /**
+     * 512KB of counters at most.
+     */
+    static final int MAX_TABLE_LENGTH = 1 << 16;
+
+    private final AtomicLongArray table;
+    private final int tableMask;
+    private final int sampleSize;
+    private final AtomicInteger size = new AtomicInteger();
+
+    FrequencySketch(int capacity) {
+        int length = 64;
+        while (length < capacity && length < MAX_TABLE_LENGTH) {
+            length <<= 1;
+        }
+        table = new AtomicLongArray(length);
+        tableMask = length - 1;
+        sampleSize = 10 * length;
+    }
+
+    int frequency(int hash) {
+        hash = spread(hash);
+        int start = (hash & 3) << 2;
+        int frequency = MAX_FREQUENCY;
+        for (int i = 0; i < 4; i++) {
+            int count = (int)((table.get(indexOf(hash, i)) >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    void increment(int hash) {
+        hash = spread(hash);
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added) {
+            size.incrementAndGet();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+        while (true) {
+            long value = table.get(index);
+            if ((value & mask) == mask) {
+                return false;
+            }
+            if (table.compareAndSet(index, value, value + (1L << offset))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Halve all the counters if enough increments were recorded since the last time. Called by the register thread.
+     */
+    void age() {
+        if (size.get() < sampleSize) {
+            return;
+        }
+        for (int i = 0; i < table.length(); i++) {
+            long value;
+            do {
+                value = table.get(i);
+            } while (!table.compareAndSet(i, value, (value >>> 1) & RESET_MASK));
+        }
+        int current;
+        do {
+            current = size.get();
+        } while (!size.compareAndSet(current, current >>> 1));
+    }
+
+    private int indexOf(int hash, int row) {
+        long index = (hash + SEEDS[row]) * SEEDS[row];
+        index += index >>> 32;
+        return (int)index & tableMask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -3,14 +3,20 @@ package org.apache.skywalking.apm.agent.http.register.directory;
 import org.apache.skywalking.apm.agent.core.dictionary.Found;
 import org.apache.skywalking.apm.agent.core.dictionary.NotFound;
 import org.apache.skywalking.apm.agent.core.dictionary.PossibleFound;
+import org.apache.skywalking.apm.agent.http.register.HttpRegisterConfig;
 import org.apache.skywalking.apm.agent.http.register.client.HttpClient;
 import org.apache.skywalking.apm.dependencies.com.google.gson.Gson;
 import org.apache.skywalking.apm.dependencies.com.google.gson.JsonArray;
 import org.apache.skywalking.apm.dependencies.com.google.gson.JsonElement;
 import org.apache.skywalking.apm.dependencies.com.google.gson.JsonObject;
 import org.apache.skywalking.apm.dependencies.io.netty.util.internal.ConcurrentSet;
+import org.apache.skywalking.apm.network.common.KeyIntValuePair;
+import org.apache.skywalking.apm.network.register.v2.NetAddressMapping;
+import org.apache.skywalking.apm.network.register.v2.NetAddresses;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -24,38 +30,146 @@ public enum NetworkAddressHttpDictionary {
     INSTANCE;
     private static final String NETWORK_ADDRESS_REGISTER_PATH = "/v6/networkAddress/register";
 
-    private static final String NETWORK_ADDRESS = "na";
-    private static final String NETWORK_ADDRESS_ID = "nai";
+    private static final String NETWORK_ADDRESS = "nd";
+    private static final String NETWORK_ADDRESS_ID = "ai";
 
     private Map<String, Integer> serviceDictionary = new ConcurrentHashMap<String, Integer>();
     private Set<String> unRegisterServices = new ConcurrentSet<String>();
+    private volatile DictionaryCacheFile cacheFile;
+    private final FrequencyAdmission admission = new FrequencyAdmission(SERVICE_CODE_BUFFER_SIZE);
     private Gson gson = new Gson();
 
     public PossibleFound find(String networkAddress) {
+        int hash = networkAddress.hashCode();
         Integer applicationId = serviceDictionary.get(networkAddress);
         if (applicationId != null) {
+            admission.recordHit(hash);
             return new Found(applicationId);
         } else {
-            if (serviceDictionary.size() + unRegisterServices.size() < SERVICE_CODE_BUFFER_SIZE) {
+            if (!unRegisterServices.contains(networkAddress)
+                && admission.admit(hash, serviceDictionary.size() + unRegisterServices.size())) {
                 unRegisterServices.add(networkAddress);
             }
+            admission.recordMiss(hash);
             return new NotFound();
         }
     }
 
     public void syncRemoteDictionary() throws IOException {
         if (unRegisterServices.size() > 0) {
-            String response = HttpClient.INSTANCE.execute(NETWORK_ADDRESS_REGISTER_PATH, unRegisterServices);
-            JsonArray array = gson.fromJson(response, JsonArray.class);
-
-            if (array != null && array.size() > 0) {
-                for (JsonElement element : array) {
-                    JsonObject object = element.getAsJsonObject();
-                    unRegisterServices.remove(object.get(NETWORK_ADDRESS).getAsString());
-                    serviceDictionary.put(object.get(NETWORK_ADDRESS).getAsString(), object.get(NETWORK_ADDRESS_ID).getAsInt());
+            if (HttpRegisterConfig.PROTOBUF) {
+                syncByProtobuf();
+            } else {
+                syncByJson();
+            }
+        }
+    }
+
+    private void syncByJson() throws IOException {
+        String response = HttpClient.INSTANCE.execute(NETWORK_ADDRESS_REGISTER_PATH, unRegisterAddressesAsJson());
+        registeredFromJson(gson.fromJson(response, JsonArray.class));
+    }
+
+    private void syncByProtobuf() throws IOException {
+        registeredFromProtobuf(HttpClient.INSTANCE.execute(NETWORK_ADDRESS_REGISTER_PATH, unRegisterAddressesAsProtobuf(), NetAddressMapping.parser()));
+    }
+
+    /**
+     * Age the lookup frequencies and evict the least frequently looked up addresses beyond the capacity, they are
+     * registered again if they turn hot. Called by the register thread.
+     */
+    public void evictOverflow() {
+        admission.age();
+        int excess = serviceDictionary.size() + unRegisterServices.size() - admission.getCapacity();
+        if (excess <= 0) {
+            return;
+        }
+        int[] histogram = new int[FrequencySketch.MAX_FREQUENCY + 1];
+        for (String address : serviceDictionary.keySet()) {
+            histogram[admission.frequency(address.hashCode())]++;
+        }
+        for (String address : unRegisterServices) {
+            histogram[admission.frequency(address.hashCode())]++;
+        }
+        int threshold = FrequencyAdmission.evictionThreshold(histogram, excess);
+        // every address below the threshold goes, the addresses at the threshold only as many as still needed
+        int thresholdQuota = excess;
+        for (int frequency = 0; frequency < threshold; frequency++) {
+            thresholdQuota -= histogram[frequency];
+        }
+
+        int evicted = 0;
+        for (Iterator<String> addresses : Arrays.asList(serviceDictionary.keySet().iterator(), unRegisterServices.iterator())) {
+            while (addresses.hasNext()) {
+                int frequency = admission.frequency(addresses.next().hashCode());
+                if (frequency < threshold || (frequency == threshold && thresholdQuota-- > 0)) {
+                    addresses.remove();
+                    evicted++;
                 }
             }
         }
+        admission.evicted(evicted, threshold);
+    }
+
+    /**
+     * @return size, hits, misses, evictions and rejected admissions.
+     */
+    public long[] getStatistics() {
+        return new long[] {serviceDictionary.size() + unRegisterServices.size(), admission.getHits(), admission.getMisses(), admission.getEvictions(), admission.getRejections()};
+    }
+
+    public boolean hasUnRegisterAddresses() {
+        return unRegisterServices.size() > 0;
+    }
+
+    public JsonArray unRegisterAddressesAsJson() {
+        JsonArray addresses = new JsonArray();
+        for (String address : unRegisterServices) {
+            addresses.add(address);
+        }
+        return addresses;
+    }
+
+    public void registeredFromJson(JsonArray array) {
+        if (array != null && array.size() > 0) {
+            for (JsonElement element : array) {
+                JsonObject object = element.getAsJsonObject();
+                registered(object.get(NETWORK_ADDRESS).getAsString(), object.get(NETWORK_ADDRESS_ID).getAsInt());
+            }
+        }
+    }
+
+    public NetAddresses unRegisterAddressesAsProtobuf() {
+        return NetAddresses.newBuilder().addAllAddresses(unRegisterServices).build();
+    }
+
+    public void registeredFromProtobuf(NetAddressMapping mapping) {
+        for (KeyIntValuePair addressId : mapping.getAddressIdsList()) {
+            registered(addressId.getKey(), addressId.getValue());
+        }
+    }
+
+    private void registered(String networkAddress, int addressId) {
+        unRegisterServices.remove(networkAddress);
+        Integer previous = serviceDictionary.put(networkAddress, addressId);
+        DictionaryCacheFile file = cacheFile;
+        if (file != null && (previous == null || previous != addressId)) {
+            file.appendNetworkAddress(networkAddress, addressId);
+        }
+    }
+
+    /**
+     * Take an id resolved by the previous run of the agent.
+     */
+    public void restore(String networkAddress, int addressId) {
+        serviceDictionary.put(networkAddress, addressId);
+    }
+
+    /**
+     * Keep the ids resolved from now on in the given file too.
+     */
+    public void cacheTo(DictionaryCacheFile cacheFile) {
+        this.cacheFile = cacheFile;
     }
 
     public void clear() {
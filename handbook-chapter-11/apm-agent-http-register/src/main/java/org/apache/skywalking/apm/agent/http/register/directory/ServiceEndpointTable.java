@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.apache.skywalking.apm.agent.http.register.directory;
+
+import org.apache.skywalking.apm.agent.core.dictionary.Found;
+import org.apache.skywalking.apm.agent.core.dictionary.NotFound;
+import org.apache.skywalking.apm.agent.core.dictionary.PossibleFound;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The endpoints of one service, by name. Every name holds the result of its entry, exit and local endpoint, created
+ * once when the id resolves, so a lookup only reads the map and returns a shared object.
+ *
+ * @author caoyixiong
+ */
+class ServiceEndpointTable {
+    static final int ENTRY = 0;
+    static final int EXIT = 1;
+    static final int LOCAL = 2;
+    static final PossibleFound NOT_FOUND = new NotFound();
+
+    private final int serviceId;
+    private final ConcurrentHashMap<String, Slots> endpoints = new ConcurrentHashMap<String, Slots>();
+
+    ServiceEndpointTable(int serviceId) {
+        this.serviceId = serviceId;
+    }
+
+    int getServiceId() {
+        return serviceId;
+    }
+
+    /**
+     * @return the slots of the name, or null if the name is unknown.
+     */
+    Slots get(String endpointName) {
+        return endpoints.get(endpointName);
+    }
+
+    /**
+     * @return the slots already held for the name, or null if the given slots were taken.
+     */
+    Slots putIfAbsent(String endpointName, Slots slots) {
+        return endpoints.putIfAbsent(endpointName, slots);
+    }
+
+    Iterable<Map.Entry<String, Slots>> entries() {
+        return endpoints.entrySet();
+    }
+
+    static int hashOf(int serviceId, String endpointName) {
+        return 31 * serviceId + endpointName.hashCode();
+    }
+
+    static int kindOf(boolean isEntry, boolean isExit) {
+        return isEntry ? ENTRY : (isExit ? EXIT : LOCAL);
+    }
+
+    static class Slots {
+        private static final AtomicIntegerFieldUpdater<Slots> PENDING_UPDATER = AtomicIntegerFieldUpdater.newUpdater(Slots.class, "pending");
+
+        private final AtomicReferenceArray<PossibleFound> results = new AtomicReferenceArray<PossibleFound>(new PossibleFound[] {NOT_FOUND, NOT_FOUND, NOT_FOUND});
+        private final int[] ids = new int[3];
+        /**
+         * Bit per kind waiting to be registered.
+         */
+        private volatile int pending;
+
+        PossibleFound get(int kind) {
+            return results.get(kind);
+        }
+
+        /**
+         * @return false if the kind is pending already.
+         */
+        boolean markPending(int kind) {
+            int bit = 1 << kind;
+            while (true) {
+                int current = pending;
+                if ((current & bit) != 0) {
+                    return false;
+                }
+                if (PENDING_UPDATER.compareAndSet(this, current, current | bit)) {
+                    return true;
+                }
+            }
+        }
+
+        int getPendingCount() {
+            return Integer.bitCount(pending);
+        }
+
+        boolean isPending(int kind) {
+            return (pending & (1 << kind)) != 0;
+        }
+
+        /**
+         * @return true if the kind was pending. Called by the register thread only.
+         */
+        boolean clearPending(int kind) {
+            int bit = 1 << kind;
+            while (true) {
+                int current = pending;
+                if ((current & bit) == 0) {
+                    return false;
+                }
+                if (PENDING_UPDATER.compareAndSet(this, current, current & ~bit)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return true if the id of the kind is new or changed. Called by the register thread only.
+         */
+        boolean resolve(int kind, int id) {
+            if (ids[kind] == id) {
+                return false;
+            }
+            ids[kind] = id;
+            results.set(kind, new Found(id));
+            return true;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.apache.skywalking.apm.agent.kafka.upload.trace;
+
+import org.apache.skywalking.apm.agent.kafka.upload.trace.client.PartitionKeyStrategy;
+
+/**
+ * Optional settings of the kafka upload trace plugin, injected as java system properties like the brokers and the
+ * topic.
+ *
+ * @author caoyixiong
+ */
+public class KafkaUploadTraceConfig {
+    /**
+     * Pack a whole batch of segments into length-prefixed envelope records instead of one record per segment. The
+     * OAP receiver has to understand the envelope format before this is turned on.
+     */
+    public static boolean ENVELOPE = getBoolean("skyWalkingKafkaEnvelope", false);
+
+    /**
+     * Max size in bytes of one envelope record, a batch exceeding it is split into several records.
+     */
+    public static int ENVELOPE_MAX_SIZE = getInt("skyWalkingKafkaEnvelopeMaxSize", 512 * 1024);
+
+    /**
+     * Key of the kafka records, one of none, traceId, service and serviceInstance, see {@link PartitionKeyStrategy}.
+     */
+    public static PartitionKeyStrategy PARTITION_KEY = PartitionKeyStrategy.parse(System.getProperty("skyWalkingKafkaPartitionKey"));
+
+    /**
+     * buffer.memory of the kafka producer, unit is MB.
+     */
+    public static int BUFFER_MEMORY = getInt("skyWalkingKafkaBufferMemory", 32);
+
+    /**
+     * Lower the share of segments sent when the producer buffer fills up, the time records wait in the producer
+     * buffer before they are sent (its record-queue-time-avg metric) climbs or records fail to send, see {@link org.apache.skywalking.apm.agent.kafka.upload.trace.sampling.AdaptiveSampler}.
+     */
+    public static boolean ADAPTIVE_SAMPLING = getBoolean("skyWalkingKafkaAdaptiveSampling", false);
+
+    /**
+     * The floor of the adaptive keep rate, unit is percent.
+     */
+    public static int ADAPTIVE_SAMPLING_MIN_KEEP_RATE = getInt("skyWalkingKafkaAdaptiveSamplingMinKeepRate", 1);
+
+    /**
+     * Segments lasting longer are always kept by the adaptive sampling, unit is ms.
+     */
+    public static int ADAPTIVE_SAMPLING_SLOW_SEGMENT = getInt("skyWalkingKafkaAdaptiveSamplingSlowSegment", 1000);
+
+    /**
+     * The record-queue-time-avg of the producer, how long records wait in its buffer before they are sent, considered
+     * as full pressure, unit is ms. Not the ack time of the statistics log.
+     */
+    public static int ADAPTIVE_SAMPLING_MAX_QUEUE_TIME = getInt("skyWalkingKafkaAdaptiveSamplingMaxQueueTime", 1000);
+
+    /**
+     * Interval of logging the sent, failed, bytes and ack time statistics of the kafka records, unit is second. The ack
+     * time runs from {@code send} to the broker acknowledgement, measured by the agent clock. Not logged when it is 0.
+     */
+    public static int STATISTICS_LOG_INTERVAL = getInt("skyWalkingKafkaStatisticsLogInterval", 60);
+
+    /**
+     * Threads consuming the segment buffer, each one transforms, serializes and sends its segments through the shared
+     * kafka producer. The buffer gets at least one channel per thread.
+     */
+    public static int CONSUMER_THREADS = getInt("skyWalkingKafkaConsumerThreads", 1);
+
+    /**
+     * How finished segments are spread over the buffer channels, rolling or thread. Thread keeps the segments of one
+     * application thread in one channel, which is cheaper under heavy contention.
+     */
+    public static String CHANNEL_PARTITIONER = System.getProperty("skyWalkingKafkaChannelPartitioner", "rolling");
+
+    /**
+     * Directory of the disk spool taking the segments dropped by a full buffer or failed to send, the spool is
+     * disabled when it isn't set.
+     */
+    public static String SPOOL_DIR = System.getProperty("skyWalkingKafkaSpoolDir");
+
+    /**
+     * Size of one memory-mapped spool file, unit is MB.
+     */
+    public static int SPOOL_FILE_SIZE = getInt("skyWalkingKafkaSpoolFileSize", 16);
+
+    /**
+     * Max count of spool files, the oldest one is dropped beyond it. The disk usage is capped by SPOOL_FILE_SIZE *
+     * SPOOL_MAX_FILES.
+     */
+    public static int SPOOL_MAX_FILES = getInt("skyWalkingKafkaSpoolMaxFiles", 8);
+
+    /**
+     * Spooled segments older than this are not sent anymore, unit is second.
+     */
+    public static int SPOOL_MAX_AGE = getInt("skyWalkingKafkaSpoolMaxAge", 3600);
+
+    /**
+     * Max count of spooled segments sent on each drain, the spool is drained every second.
+     */
+    public static int SPOOL_DRAIN_BATCH = getInt("skyWalkingKafkaSpoolDrainBatch", 500);
+
+    /**
+     * Max count of segments waiting for the spool writer thread, the segments beyond it are dropped.
+     */
+    public static int SPOOL_QUEUE_SIZE = getInt("skyWalkingKafkaSpoolQueueSize", 1024);
+
+    static boolean getBoolean(String key, boolean defaultValue) {
+        String value = System.getProperty(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    static int getInt(String key, int defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package org.apache.skywalking.apm.agent.kafka.upload.trace;
 
+import org.apache.skywalking.apm.agent.core.boot.DefaultNamedThreadFactory;
 import org.apache.skywalking.apm.agent.core.boot.OverrideImplementor;
 import org.apache.skywalking.apm.agent.core.context.TracingContext;
 import org.apache.skywalking.apm.agent.core.context.trace.TraceSegment;
@@ -7,11 +8,28 @@ import org.apache.skywalking.apm.agent.core.logging.api.ILog;
 import org.apache.skywalking.apm.agent.core.logging.api.LogManager;
 import org.apache.skywalking.apm.agent.core.remote.TraceSegmentServiceClient;
 import org.apache.skywalking.apm.agent.kafka.upload.trace.client.KafkaClient;
+import org.apache.skywalking.apm.agent.kafka.upload.trace.client.PartitionKeyStrategy;
+import org.apache.skywalking.apm.agent.kafka.upload.trace.sampling.AdaptiveSampler;
+import org.apache.skywalking.apm.agent.kafka.upload.trace.spool.SegmentSpool;
+import org.apache.skywalking.apm.agent.kafka.upload.trace.spool.SpoolWriter;
+import org.apache.skywalking.apm.agent.kafka.upload.trace.spool.SpooledSegment;
 import org.apache.skywalking.apm.commons.datacarrier.DataCarrier;
 import org.apache.skywalking.apm.commons.datacarrier.buffer.BufferStrategy;
+import org.apache.skywalking.apm.commons.datacarrier.partition.ProducerThreadPartitioner;
+import org.apache.skywalking.apm.commons.datacarrier.partition.SimpleRollingPartitioner;
+import org.apache.skywalking.apm.dependencies.com.google.protobuf.InvalidProtocolBufferException;
 import org.apache.skywalking.apm.network.language.agent.UpstreamSegment;
+import org.apache.skywalking.apm.util.RunnableWithExceptionProtection;
+import org.apache.skywalking.apm.util.StringUtil;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static org.apache.skywalking.apm.agent.core.conf.Config.Buffer.BUFFER_SIZE;
 import static org.apache.skywalking.apm.agent.core.conf.Config.Buffer.CHANNEL_SIZE;
@@ -22,17 +40,106 @@ import static org.apache.skywalking.apm.agent.core.conf.Config.Buffer.CHANNEL_SI
 @OverrideImplementor(TraceSegmentServiceClient.class)
 public class TraceSegmentKafkaServiceClient extends TraceSegmentServiceClient {
     private static final ILog logger = LogManager.getLogger(TraceSegmentServiceClient.class);
+    /**
+     * The spool isn't drained until no record failed to send for this long.
+     */
+    private static final long SPOOL_DRAIN_QUIET_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
     private volatile DataCarrier<TraceSegment> carrier;
     private KafkaClient kafkaClient;
+    private volatile SpoolWriter spoolWriter;
+    private volatile AdaptiveSampler sampler;
+    private ScheduledExecutorService scheduler;
+    /**
+     * The sampler has a thread of its own, a drain of the spool blocks in {@code send} right when kafka is under the
+     * pressure the sampler has to react to.
+     */
+    private ScheduledExecutorService samplerScheduler;
     @Override
     public void prepare() throws Throwable {
     }
     @Override
     public void boot() throws Throwable {
-        kafkaClient = new KafkaClient();
-        carrier = new DataCarrier<TraceSegment>(CHANNEL_SIZE, BUFFER_SIZE);
+        if (!StringUtil.isEmpty(KafkaUploadTraceConfig.SPOOL_DIR)) {
+            SegmentSpool spool = new SegmentSpool(new File(KafkaUploadTraceConfig.SPOOL_DIR),
+                KafkaUploadTraceConfig.SPOOL_FILE_SIZE * 1024 * 1024,
+                KafkaUploadTraceConfig.SPOOL_MAX_FILES,
+                TimeUnit.SECONDS.toMillis(KafkaUploadTraceConfig.SPOOL_MAX_AGE));
+            spoolWriter = new SpoolWriter(spool, KafkaUploadTraceConfig.SPOOL_QUEUE_SIZE);
+        }
+        kafkaClient = new KafkaClient(spoolWriter);
+        int consumerThreads = Math.max(1, KafkaUploadTraceConfig.CONSUMER_THREADS);
+        carrier = new DataCarrier<TraceSegment>(Math.max(CHANNEL_SIZE, consumerThreads), BUFFER_SIZE);
         carrier.setBufferStrategy(BufferStrategy.IF_POSSIBLE);
-        carrier.consume(this, 1);
+        if ("thread".equalsIgnoreCase(KafkaUploadTraceConfig.CHANNEL_PARTITIONER)) {
+            carrier.setPartitioner(new ProducerThreadPartitioner<TraceSegment>());
+        } else {
+            carrier.setPartitioner(new SimpleRollingPartitioner<TraceSegment>());
+        }
+        // this consumer is shared by all the threads, it keeps no state but the thread safe kafka client
+        carrier.consume(this, consumerThreads);
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new DefaultNamedThreadFactory("TraceSegmentKafkaServiceClient"));
+        if (spoolWriter != null) {
+            schedule(scheduler, new Runnable() {
+                @Override
+                public void run() {
+                    drainSpool();
+                }
+            }, 1, "drain segment spool failure.");
+        }
+        if (KafkaUploadTraceConfig.ADAPTIVE_SAMPLING) {
+            final AdaptiveSampler adaptiveSampler = new AdaptiveSampler(kafkaClient,
+                KafkaUploadTraceConfig.ADAPTIVE_SAMPLING_MIN_KEEP_RATE / 100.0,
+                KafkaUploadTraceConfig.ADAPTIVE_SAMPLING_SLOW_SEGMENT,
+                KafkaUploadTraceConfig.ADAPTIVE_SAMPLING_MAX_QUEUE_TIME);
+            samplerScheduler = Executors.newSingleThreadScheduledExecutor(new DefaultNamedThreadFactory("TraceSegmentKafkaServiceClient-sampler"));
+            schedule(samplerScheduler, new Runnable() {
+                @Override
+                public void run() {
+                    adaptiveSampler.update();
+                }
+            }, 1, "update adaptive sampler failure.");
+            sampler = adaptiveSampler;
+        }
+        if (KafkaUploadTraceConfig.STATISTICS_LOG_INTERVAL > 0) {
+            schedule(scheduler, new Runnable() {
+                @Override
+                public void run() {
+                    kafkaClient.logStatistics();
+                }
+            }, KafkaUploadTraceConfig.STATISTICS_LOG_INTERVAL, "log kafka send statistics failure.");
+        }
+    }
+
+    private void schedule(ScheduledExecutorService executor, Runnable task, long periodSeconds,
+                          final String errorMessage) {
+        executor.scheduleWithFixedDelay(new RunnableWithExceptionProtection(task, new RunnableWithExceptionProtection.CallbackWhenException() {
+            @Override
+            public void handle(Throwable t) {
+                logger.error(t, errorMessage);
+            }
+        }), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Send the spooled segments again, once kafka accepted records for a while.
+     */
+    private void drainSpool() {
+        if (System.currentTimeMillis() - kafkaClient.getLastFailureTime() < SPOOL_DRAIN_QUIET_MILLIS) {
+            return;
+        }
+        for (int i = 0; i < KafkaUploadTraceConfig.SPOOL_DRAIN_BATCH; i++) {
+            SpooledSegment spooledSegment = spoolWriter.getSpool().poll();
+            if (spooledSegment == null) {
+                return;
+            }
+            try {
+                kafkaClient.send(spooledSegment.getKey(), UpstreamSegment.parseFrom(spooledSegment.getSegment()));
+            } catch (InvalidProtocolBufferException e) {
+                logger.error(e, "drop the corrupted spooled segment.");
+            }
+        }
     }
     @Override
     public void onComplete() throws Throwable {
@@ -43,7 +150,14 @@ public class TraceSegmentKafkaServiceClient extends TraceSegmentServiceClient {
     public void shutdown() throws Throwable {
         TracingContext.ListenerManager.remove(this);
         carrier.shutdownConsumers();
+        scheduler.shutdownNow();
+        if (samplerScheduler != null) {
+            samplerScheduler.shutdownNow();
+        }
         kafkaClient.close();
+        if (spoolWriter != null) {
+            spoolWriter.close();
+        }
     }
     @Override
     public void init() {
@@ -51,9 +165,27 @@ public class TraceSegmentKafkaServiceClient extends TraceSegmentServiceClient {
     @Override
     public void consume(List<TraceSegment> data) {
         try {
-            for (TraceSegment segment : data) {
-                UpstreamSegment upstreamSegment = segment.transform();
-                kafkaClient.send(upstreamSegment);
+            PartitionKeyStrategy keyStrategy = KafkaUploadTraceConfig.PARTITION_KEY;
+            if (KafkaUploadTraceConfig.ENVELOPE) {
+                // segments sharing a key are packed together, so every envelope keeps its partition affinity
+                Map<String, List<UpstreamSegment>> segmentsByKey = new LinkedHashMap<String, List<UpstreamSegment>>();
+                for (TraceSegment segment : data) {
+                    String key = keyStrategy.keyOf(segment);
+                    List<UpstreamSegment> upstreamSegments = segmentsByKey.get(key);
+                    if (upstreamSegments == null) {
+                        upstreamSegments = new ArrayList<UpstreamSegment>();
+                        segmentsByKey.put(key, upstreamSegments);
+                    }
+                    upstreamSegments.add(segment.transform());
+                }
+                for (Map.Entry<String, List<UpstreamSegment>> entry : segmentsByKey.entrySet()) {
+                    kafkaClient.sendEnvelopes(entry.getKey(), entry.getValue());
+                }
+            } else {
+                for (TraceSegment segment : data) {
+                    UpstreamSegment upstreamSegment = segment.transform();
+                    kafkaClient.send(keyStrategy.keyOf(segment), upstreamSegment);
+                }
             }
         } catch (Throwable t) {
             logger.error(t, "Transform and send UpstreamSegment to collector fail.");
@@ -71,7 +203,19 @@ public class TraceSegmentKafkaServiceClient extends TraceSegmentServiceClient {
         if (traceSegment.isIgnore()) {
             return;
         }
+        AdaptiveSampler adaptiveSampler = sampler;
+        if (adaptiveSampler != null && !adaptiveSampler.shouldKeep(traceSegment)) {
+            if (logger.isDebugEnable()) {
+                logger.debug("One trace segment has been abandoned, cause by adaptive sampling.");
+            }
+            return;
+        }
         if (!carrier.produce(traceSegment)) {
+            SpoolWriter writer = spoolWriter;
+            // only queued here, the spool writer thread transforms and writes the segment
+            if (writer != null && writer.offer(KafkaUploadTraceConfig.PARTITION_KEY.keyOf(traceSegment), traceSegment)) {
+                return;
+            }
             if (logger.isDebugEnable()) {
                 logger.debug("One trace segment has been abandoned, cause by buffer is full.");
             }
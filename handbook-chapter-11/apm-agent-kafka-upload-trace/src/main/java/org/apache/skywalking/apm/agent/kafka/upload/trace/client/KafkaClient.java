@@ -20,27 +20,54 @@ package org.apache.skywalking.apm.agent.kafka.upload.trace.client;
 
 import org.apache.kafka.clients.CommonClientConfigs;
 import org.apache.kafka.clients.producer.*;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
 import org.apache.kafka.common.serialization.ByteArraySerializer;
 import org.apache.kafka.common.serialization.StringSerializer;
 import org.apache.skywalking.apm.agent.core.logging.api.ILog;
 import org.apache.skywalking.apm.agent.core.logging.api.LogManager;
-import org.apache.skywalking.apm.dependencies.com.google.gson.Gson;
+import org.apache.skywalking.apm.agent.kafka.upload.trace.KafkaUploadTraceConfig;
+import org.apache.skywalking.apm.agent.kafka.upload.trace.spool.SpoolWriter;
 import org.apache.skywalking.apm.network.language.agent.UpstreamSegment;
 import org.apache.skywalking.apm.util.StringUtil;
 
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author caoyixiong
  */
 public class KafkaClient {
     private static final ILog logger = LogManager.getLogger(KafkaClient.class);
-    private Gson gson = new Gson();
+    private static final String PRODUCER_METRICS_GROUP = "producer-metrics";
+    /**
+     * Send failures are logged at most once in this interval, the others are only counted.
+     */
+    private static final long FAILURE_LOG_INTERVAL = TimeUnit.SECONDS.toMillis(10);
     private Producer<String, byte[]> producer;
     private String brokers;
     private String topic;
+    private final int maxEnvelopeSize;
+    private final SpoolWriter spoolWriter;
+    private volatile long lastFailureTime = 0;
+    private final Map<String, Metric> producerMetrics = new ConcurrentHashMap<String, Metric>();
+    private final SendStatistics statistics = new SendStatistics();
+    private final AtomicLong nextFailureLogTime = new AtomicLong();
+    private final AtomicLong unloggedFailures = new AtomicLong();
+    private long[] lastLoggedCounters = new long[4];
+    private long[] lastLoggedHistogram = new long[SendStatistics.getAckTimeBuckets().length + 1];
 
-    public KafkaClient() {
+    /**
+     * @param spoolWriter takes the segments failed to send, may be null.
+     */
+    public KafkaClient(SpoolWriter spoolWriter) {
+        this.spoolWriter = spoolWriter;
         brokers = System.getProperties().getProperty("skyWalkingKafkaBrokers");
         topic = System.getProperties().getProperty("skyWalkingKafkaTopic");
         if (StringUtil.isEmpty(brokers)) {
@@ -56,37 +83,150 @@ public class KafkaClient {
         properties.put(ProducerConfig.RETRIES_CONFIG, 3);
         properties.put(ProducerConfig.BATCH_SIZE_CONFIG, 16 * 1024);
         properties.put(ProducerConfig.LINGER_MS_CONFIG, 5);
-        properties.put(ProducerConfig.BUFFER_MEMORY_CONFIG, 32 * 1024 * 1024);
+        properties.put(ProducerConfig.BUFFER_MEMORY_CONFIG, KafkaUploadTraceConfig.BUFFER_MEMORY * 1024L * 1024L);
         properties.put(ProducerConfig.MAX_REQUEST_SIZE_CONFIG, 10 * 1024 * 1024);
         properties.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, "lz4");
         properties.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
         properties.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
+        maxEnvelopeSize = KafkaUploadTraceConfig.ENVELOPE_MAX_SIZE;
         Thread.currentThread().setContextClassLoader(null);
         producer = new KafkaProducer<String, byte[]>(properties);
     }
 
-    public void send(UpstreamSegment upstreamSegment) {
-        producer.send(new ProducerRecord<String, byte[]>(this.topic, upstreamSegment.toByteArray()), new KafkaCallBack(upstreamSegment));
+    public void send(String key, UpstreamSegment upstreamSegment) {
+        producer.send(new ProducerRecord<String, byte[]>(this.topic, key, upstreamSegment.toByteArray()), callBackOf(key, Collections.singletonList(upstreamSegment)));
+    }
+
+    /**
+     * Send the segments packed into as few {@link SegmentEnvelope} records as the max envelope size allows.
+     * <p>
+     * Every envelope gets its own exactly sized array. The producer takes the record value as a {@code byte[]} whose
+     * length is the value size and keeps a reference to it until the record is acknowledged, so a buffer can't be
+     * reused across records.
+     */
+    public void sendEnvelopes(String key, List<UpstreamSegment> upstreamSegments) throws IOException {
+        for (SegmentEnvelope envelope : SegmentEnvelope.pack(upstreamSegments, maxEnvelopeSize)) {
+            producer.send(new ProducerRecord<String, byte[]>(this.topic, key, envelope.toByteArray()), callBackOf(key, envelope.getSegments()));
+        }
+    }
+
+    /**
+     * The segments of a record are only kept alive until it is acknowledged when they may go to the spool, otherwise
+     * the callback only holds the send time.
+     */
+    private Callback callBackOf(String key, List<UpstreamSegment> upstreamSegments) {
+        long sendTime = System.nanoTime();
+        return spoolWriter == null ? new SendCallBack(sendTime) : new SpoolingCallBack(sendTime, key, upstreamSegments);
+    }
+
+    public SendStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Log what was sent since the last call, the self-metrics of the plugin. Called by one thread only.
+     */
+    public void logStatistics() {
+        long[] counters = {statistics.getSent(), statistics.getFailed(), statistics.getBytes(), statistics.getAckTime()};
+        long[] histogram = statistics.getAckTimeHistogram();
+        long sent = counters[0] - lastLoggedCounters[0];
+        long[] histogramDelta = new long[histogram.length];
+        for (int i = 0; i < histogram.length; i++) {
+            histogramDelta[i] = histogram[i] - lastLoggedHistogram[i];
+        }
+        logger.info("kafka records sent: {}, failed: {}, bytes: {}, avg ack time: {}ms, p99 ack time: <= {}ms, total sent: {}, total failed: {}",
+            sent, counters[1] - lastLoggedCounters[1], counters[2] - lastLoggedCounters[2],
+            sent == 0 ? 0 : (counters[3] - lastLoggedCounters[3]) / sent,
+            SendStatistics.percentile(histogramDelta, 0.99), counters[0], counters[1]);
+        lastLoggedCounters = counters;
+        lastLoggedHistogram = histogram;
+    }
+
+    /**
+     * @return the value of the metric in the producer-metrics group, NaN if the producer doesn't report it.
+     */
+    public double producerMetric(String name) {
+        Metric metric = producerMetrics.get(name);
+        if (metric == null) {
+            for (Map.Entry<MetricName, ? extends Metric> entry : producer.metrics().entrySet()) {
+                if (PRODUCER_METRICS_GROUP.equals(entry.getKey().group()) && name.equals(entry.getKey().name())) {
+                    metric = entry.getValue();
+                    producerMetrics.put(name, metric);
+                    break;
+                }
+            }
+            if (metric == null) {
+                return Double.NaN;
+            }
+        }
+        return metric.value();
+    }
+
+    /**
+     * @return the last time a record failed to send, 0 if none ever failed.
+     */
+    public long getLastFailureTime() {
+        return lastFailureTime;
     }
 
     public void close() {
         producer.close();
     }
 
-    class KafkaCallBack implements Callback {
-        private final UpstreamSegment upstreamSegment;
+    private void onFailure(Exception exception) {
+        long now = System.currentTimeMillis();
+        lastFailureTime = now;
+        statistics.recordFailed();
+        long nextLogTime = nextFailureLogTime.get();
+        if (now >= nextLogTime && nextFailureLogTime.compareAndSet(nextLogTime, now + FAILURE_LOG_INTERVAL)) {
+            logger.error(exception, "kafka record send failure, {} more failures since the last log", unloggedFailures.getAndSet(0));
+        } else {
+            unloggedFailures.incrementAndGet();
+        }
+    }
 
-        public KafkaCallBack(UpstreamSegment upstreamSegment) {
-            this.upstreamSegment = upstreamSegment;
+    /**
+     * Runs on the producer I/O thread, so it only counts. The ack time is taken from the local send time, the record
+     * timestamp may be the broker append time.
+     */
+    class SendCallBack implements Callback {
+        private final long sendTime;
+
+        SendCallBack(long sendTime) {
+            this.sendTime = sendTime;
         }
 
         @Override
         public void onCompletion(RecordMetadata metadata, Exception exception) {
             if (exception == null) {
-                // send success
-                logger.error("trace segment send success" + gson.toJson(upstreamSegment.getGlobalTraceIdsList()));
+                statistics.recordSent(metadata.serializedValueSize(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sendTime));
             } else {
-                logger.error("trace segment send failure");
+                onFailure(exception);
+            }
+        }
+    }
+
+    /**
+     * Only queues the failed segments, the spool writer thread serializes and writes them.
+     */
+    class SpoolingCallBack extends SendCallBack {
+        private final String key;
+        private final List<UpstreamSegment> upstreamSegments;
+
+        SpoolingCallBack(long sendTime, String key, List<UpstreamSegment> upstreamSegments) {
+            super(sendTime);
+            this.key = key;
+            this.upstreamSegments = upstreamSegments;
+        }
+
+        @Override
+        public void onCompletion(RecordMetadata metadata, Exception exception) {
+            super.onCompletion(metadata, exception);
+            if (exception != null) {
+                for (UpstreamSegment upstreamSegment : upstreamSegments) {
+                    spoolWriter.offer(key, upstreamSegment);
+                }
             }
         }
     }
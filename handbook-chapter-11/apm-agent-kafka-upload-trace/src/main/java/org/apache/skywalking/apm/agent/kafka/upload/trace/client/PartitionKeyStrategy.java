@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.apache.skywalking.apm.agent.kafka.upload.trace.client;
+
+import org.apache.skywalking.apm.agent.core.conf.RemoteDownstreamConfig;
+import org.apache.skywalking.apm.agent.core.context.ids.DistributedTraceId;
+import org.apache.skywalking.apm.agent.core.context.trace.TraceSegment;
+
+import java.util.List;
+
+/**
+ * Chooses the key of the kafka record carrying a segment. Records with the same key land on the same partition, so
+ * the same OAP consumer gets all the segments of one trace, service or service instance.
+ *
+ * @author caoyixiong
+ */
+public enum PartitionKeyStrategy {
+    /**
+     * No key, the producer spreads the records over all the partitions.
+     */
+    NONE {
+        @Override
+        public String keyOf(TraceSegment segment) {
+            return null;
+        }
+    },
+    /**
+     * The first global trace id of the segment.
+     */
+    TRACE_ID {
+        @Override
+        public String keyOf(TraceSegment segment) {
+            List<DistributedTraceId> traceIds = segment.getRelatedGlobalTraces();
+            return traceIds.isEmpty() ? null : traceIds.get(0).encode();
+        }
+    },
+    SERVICE {
+        @Override
+        public String keyOf(TraceSegment segment) {
+            return idKey(RemoteDownstreamConfig.Agent.SERVICE_ID);
+        }
+    },
+    SERVICE_INSTANCE {
+        @Override
+        public String keyOf(TraceSegment segment) {
+            return idKey(RemoteDownstreamConfig.Agent.SERVICE_INSTANCE_ID);
+        }
+    };
+
+    private static volatile IdKey LAST_ID_KEY = new IdKey(0, "0");
+
+    public abstract String keyOf(TraceSegment segment);
+
+    /**
+     * The service and instance ids don't change after registration, keep the last string to avoid formatting it for
+     * every segment.
+     */
+    private static String idKey(int id) {
+        IdKey last = LAST_ID_KEY;
+        if (last.id != id) {
+            last = new IdKey(id, String.valueOf(id));
+            LAST_ID_KEY = last;
+        }
+        return last.key;
+    }
+
+    /**
+     * @return the strategy named by the value, case insensitive and ignoring '_', or NONE if it doesn't match any.
+     */
+    public static PartitionKeyStrategy parse(String value) {
+        if (value != null) {
+            String name = value.trim().replace("_", "");
+            for (PartitionKeyStrategy strategy : values()) {
+                if (strategy.name().replace("_", "").equalsIgnoreCase(name)) {
+                    return strategy;
+                }
+            }
+        }
+        return NONE;
+    }
+
+    private static class IdKey {
+        private final int id;
+        private final String key;
+
+        private IdKey(int id, String key) {
+            this.id = id;
+            this.key = key;
+        }
+    }
+}
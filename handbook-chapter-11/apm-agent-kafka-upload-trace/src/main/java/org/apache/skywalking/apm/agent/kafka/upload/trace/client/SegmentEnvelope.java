@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.apache.skywalking.apm.agent.kafka.upload.trace.client;
+
+import org.apache.skywalking.apm.dependencies.com.google.protobuf.CodedOutputStream;
+import org.apache.skywalking.apm.network.language.agent.UpstreamSegment;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs several {@link UpstreamSegment}s into one kafka record value:
+ * <pre>
+ * | magic 0x00 | version | varint size | segment | varint size | segment | ...
+ * </pre>
+ * A serialized {@link UpstreamSegment} never starts with 0x00, which isn't a valid protobuf tag, so the receiver
+ * tells envelopes from the legacy one-segment records by the first byte.
+ *
+ * @author caoyixiong
+ */
+public class SegmentEnvelope {
+    public static final byte MAGIC = 0x00;
+    public static final byte VERSION = 0x01;
+    static final int HEADER_SIZE = 2;
+
+    private final List<UpstreamSegment> segments = new ArrayList<UpstreamSegment>();
+    private int payloadSize = 0;
+
+    /**
+     * Split the segments into envelopes no larger than maxSize, unless a single segment exceeds it.
+     */
+    public static List<SegmentEnvelope> pack(List<UpstreamSegment> segments, int maxSize) {
+        List<SegmentEnvelope> envelopes = new ArrayList<SegmentEnvelope>();
+        SegmentEnvelope envelope = new SegmentEnvelope();
+        for (UpstreamSegment segment : segments) {
+            int segmentSize = sizeOf(segment);
+            if (!envelope.segments.isEmpty() && envelope.serializedSize() + segmentSize > maxSize) {
+                envelopes.add(envelope);
+                envelope = new SegmentEnvelope();
+            }
+            envelope.segments.add(segment);
+            envelope.payloadSize += segmentSize;
+        }
+        if (!envelope.segments.isEmpty()) {
+            envelopes.add(envelope);
+        }
+        return envelopes;
+    }
+
+    private static int sizeOf(UpstreamSegment segment) {
+        int serializedSize = segment.getSerializedSize();
+        return CodedOutputStream.computeUInt32SizeNoTag(serializedSize) + serializedSize;
+    }
+
+    public byte[] toByteArray() throws IOException {
+        byte[] bytes = new byte[serializedSize()];
+        CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+        output.writeRawByte(MAGIC);
+        output.writeRawByte(VERSION);
+        for (UpstreamSegment segment : segments) {
+            output.writeUInt32NoTag(segment.getSerializedSize());
+            segment.writeTo(output);
+        }
+        output.checkNoSpaceLeft();
+        return bytes;
+    }
+
+    public List<UpstreamSegment> getSegments() {
+        return segments;
+    }
+
+    public int serializedSize() {
+        return HEADER_SIZE + payloadSize;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.apache.skywalking.apm.agent.kafka.upload.trace.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of the records sent by the {@link KafkaClient}: sent, failed, value bytes and a histogram of the ack time,
+ * the time from {@code send} to the broker acknowledgement measured by the agent clock.
+ * <p>
+ * The send callbacks all run on the one producer I/O thread, so plain atomic counters don't contend. Reads are not an
+ * atomic snapshot of all the counters.
+ *
+ * @author caoyixiong
+ */
+public class SendStatistics {
+    /**
+     * Upper bounds of the ack time buckets, unit is ms. The last bucket takes everything above.
+     */
+    private static final long[] ACK_TIME_BUCKETS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000};
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong ackTime = new AtomicLong();
+    private final AtomicLongArray histogram = new AtomicLongArray(ACK_TIME_BUCKETS.length + 1);
+
+    /**
+     * @param ackTime the time from send to acknowledgement, unit is ms
+     */
+    public void recordSent(int valueSize, long ackTime) {
+        sent.incrementAndGet();
+        if (valueSize > 0) {
+            bytes.addAndGet(valueSize);
+        }
+        this.ackTime.addAndGet(ackTime);
+        histogram.incrementAndGet(bucketOf(ackTime));
+    }
+
+    public void recordFailed() {
+        failed.incrementAndGet();
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return the summed ack time of the sent records, unit is ms.
+     */
+    public long getAckTime() {
+        return ackTime.get();
+    }
+
+    /**
+     * @return the record count per ack time bucket, the buckets are bounded by {@link #getAckTimeBuckets()}.
+     */
+    public long[] getAckTimeHistogram() {
+        long[] counts = new long[histogram.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = histogram.get(i);
+        }
+        return counts;
+    }
+
+    public static long[] getAckTimeBuckets() {
+        return ACK_TIME_BUCKETS.clone();
+    }
+
+    /**
+     * @return the upper bound of the bucket holding the given share of the records, -1 if none was sent. The records
+     * above the last bound report {@link Long#MAX_VALUE}.
+     */
+    public static long percentile(long[] histogram, double rate) {
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        if (total == 0) {
+            return -1;
+        }
+        long rank = (long)Math.ceil(total * rate);
+        long seen = 0;
+        for (int i = 0; i < ACK_TIME_BUCKETS.length; i++) {
+            seen += histogram[i];
+            if (seen >= rank) {
+                return ACK_TIME_BUCKETS[i];
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private static int bucketOf(long ackTime) {
+        for (int i = 0; i < ACK_TIME_BUCKETS.length; i++) {
+            if (ackTime <= ACK_TIME_BUCKETS[i]) {
+                return i;
+            }
+        }
+        return ACK_TIME_BUCKETS.length;
+    }
+}
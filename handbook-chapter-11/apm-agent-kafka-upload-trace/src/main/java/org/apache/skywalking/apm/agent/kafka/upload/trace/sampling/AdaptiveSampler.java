@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.apache.skywalking.apm.agent.kafka.upload.trace.sampling;
+
+import org.apache.skywalking.apm.agent.core.context.ids.DistributedTraceId;
+import org.apache.skywalking.apm.agent.core.context.trace.TraceSegment;
+import org.apache.skywalking.apm.agent.core.logging.api.ILog;
+import org.apache.skywalking.apm.agent.core.logging.api.LogManager;
+import org.apache.skywalking.apm.agent.kafka.upload.trace.client.KafkaClient;
+
+import java.util.List;
+
+/**
+ * Lowers the share of finished segments handed to the kafka producer when it is under pressure, instead of letting
+ * the full buffer drop segments at random.
+ * <p>
+ * {@link #update()} is called every second and derives a pressure in [0, 1] from the producer metrics: the used
+ * share of {@code buffer.memory}, the average record queue time and the share of records failed to send. The keep
+ * rate follows 1 - pressure, dropping fast and recovering slowly, and never goes below the min keep rate. Segments
+ * slower than the slow threshold are always kept.
+ * <p>
+ * Whether a segment is kept is decided from the hash of its global trace id, so all the segments of a trace are kept
+ * or dropped together across the agents running at the same keep rate, and a trace kept at a lower rate is kept at any
+ * higher one.
+ * <p>
+ * TraceSegment doesn't expose its spans before {@code transform()}, so an error can't be seen at this point without
+ * paying the transformation the sampler is meant to save, slow segments are the only ones kept preferentially.
+ *
+ * @author caoyixiong
+ */
+public class AdaptiveSampler {
+    private static final ILog logger = LogManager.getLogger(AdaptiveSampler.class);
+
+    /**
+     * Buffer usage below it adds no pressure, the pressure grows linearly up to 1 at {@link #BUFFER_USAGE_FULL}.
+     */
+    private static final double BUFFER_USAGE_LOW = 0.5;
+    private static final double BUFFER_USAGE_FULL = 0.9;
+    private static final double DECREASE_WEIGHT = 0.5;
+    private static final double INCREASE_WEIGHT = 0.1;
+    private static final int RATE_SCALE = 10000;
+
+    private final KafkaClient kafkaClient;
+    private final double minKeepRate;
+    private final long slowSegmentThreshold;
+    private final double maxQueueTime;
+    private volatile double keepRate = 1;
+
+    /**
+     * @param minKeepRate          the keep rate floor, in [0, 1]
+     * @param slowSegmentThreshold segments lasting longer are always kept, unit is ms
+     * @param maxQueueTime         the average record queue time considered as full pressure, unit is ms
+     */
+    public AdaptiveSampler(KafkaClient kafkaClient, double minKeepRate, long slowSegmentThreshold,
+                           long maxQueueTime) {
+        this.kafkaClient = kafkaClient;
+        this.minKeepRate = Math.min(1, Math.max(0, minKeepRate));
+        this.slowSegmentThreshold = slowSegmentThreshold;
+        this.maxQueueTime = Math.max(1, maxQueueTime);
+    }
+
+    /**
+     * Called by the application threads when a segment finished.
+     */
+    public boolean shouldKeep(TraceSegment segment) {
+        double rate = keepRate;
+        if (rate >= 1) {
+            return true;
+        }
+        if (System.currentTimeMillis() - segment.createTime() >= slowSegmentThreshold) {
+            return true;
+        }
+        return bucketOf(segment) < rate * RATE_SCALE;
+    }
+
+    /**
+     * @return the bucket in [0, RATE_SCALE) of the first global trace id of the segment.
+     */
+    private static int bucketOf(TraceSegment segment) {
+        List<DistributedTraceId> traceIds = segment.getRelatedGlobalTraces();
+        String traceId = traceIds.isEmpty() ? segment.getTraceSegmentId().encode() : traceIds.get(0).encode();
+        int hash = traceId.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x45d9f3b;
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) % RATE_SCALE;
+    }
+
+    public void update() {
+        double pressure = Math.max(bufferPressure(), Math.max(queuePressure(), errorPressure()));
+        double target = Math.max(minKeepRate, 1 - pressure);
+        double current = keepRate;
+        double next = current + (target - current) * (target < current ? DECREASE_WEIGHT : INCREASE_WEIGHT);
+        if (next > 0.999) {
+            next = 1;
+        }
+        if (Math.abs(next - current) >= 0.1 || (next == 1 && current < 1)) {
+            logger.info("kafka producer pressure is {}, trace segment keep rate changes from {} to {}", pressure, current, next);
+        }
+        keepRate = next;
+    }
+
+    public double getKeepRate() {
+        return keepRate;
+    }
+
+    private double bufferPressure() {
+        double total = kafkaClient.producerMetric("buffer-total-bytes");
+        double available = kafkaClient.producerMetric("buffer-available-bytes");
+        if (total <= 0 || Double.isNaN(available)) {
+            return 0;
+        }
+        double usage = 1 - available / total;
+        return clamp((usage - BUFFER_USAGE_LOW) / (BUFFER_USAGE_FULL - BUFFER_USAGE_LOW));
+    }
+
+    private double queuePressure() {
+        double queueTime = kafkaClient.producerMetric("record-queue-time-avg");
+        return Double.isNaN(queueTime) ? 0 : clamp(queueTime / maxQueueTime);
+    }
+
+    private double errorPressure() {
+        double errorRate = kafkaClient.producerMetric("record-error-rate");
+        double sendRate = kafkaClient.producerMetric("record-send-rate");
+        if (Double.isNaN(errorRate) || errorRate <= 0) {
+            return 0;
+        }
+        if (Double.isNaN(sendRate) || sendRate <= 0) {
+            return 1;
+        }
+        return clamp(errorRate / (errorRate + sendRate));
+    }
+
+    private static double clamp(double value) {
+        return value < 0 ? 0 : (value > 1 ? 1 : value);
+    }
+}
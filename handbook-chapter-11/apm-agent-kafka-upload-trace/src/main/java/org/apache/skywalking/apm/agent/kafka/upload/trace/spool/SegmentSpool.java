@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.apache.skywalking.apm.agent.kafka.upload.trace.spool;
+
+import org.apache.skywalking.apm.agent.core.logging.api.ILog;
+import org.apache.skywalking.apm.agent.core.logging.api.LogManager;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A bounded disk spool of the segments the agent would otherwise drop, made of {@link SpoolFile}s in one directory.
+ * Segments are appended to the newest file and drained from the oldest one. Once the max count of files is reached,
+ * the oldest file is dropped to make room, and segments older than the max age are skipped when drained.
+ *
+ * @author caoyixiong
+ */
+public class SegmentSpool {
+    private static final ILog logger = LogManager.getLogger(SegmentSpool.class);
+
+    static final String FILE_PREFIX = "segments-";
+    static final String FILE_SUFFIX = ".spool";
+
+    private final File dir;
+    private final int fileSize;
+    private final int maxFiles;
+    private final long maxAgeMillis;
+    private final LinkedList<SpoolFile> files = new LinkedList<SpoolFile>();
+    private long nextSequence = 0;
+
+    public SegmentSpool(File dir, int fileSize, int maxFiles, long maxAgeMillis) throws IOException {
+        this.dir = dir;
+        this.fileSize = fileSize;
+        this.maxFiles = Math.max(1, maxFiles);
+        this.maxAgeMillis = maxAgeMillis;
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("can't create spool directory " + dir.getAbsolutePath());
+        }
+        recover();
+    }
+
+    /**
+     * Reopen the files left by the previous run, their records which were never drained are drained again.
+     */
+    private void recover() throws IOException {
+        File[] existing = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX);
+            }
+        });
+        if (existing == null) {
+            return;
+        }
+        List<SpoolFile> recovered = new ArrayList<SpoolFile>();
+        for (File file : existing) {
+            String name = file.getName();
+            try {
+                long sequence = Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+                recovered.add(SpoolFile.open(file, sequence));
+                nextSequence = Math.max(nextSequence, sequence + 1);
+            } catch (NumberFormatException e) {
+                logger.warn("ignore unexpected spool file {}", file.getAbsolutePath());
+            }
+        }
+        Collections.sort(recovered, new Comparator<SpoolFile>() {
+            @Override
+            public int compare(SpoolFile o1, SpoolFile o2) {
+                return o1.getSequence() < o2.getSequence() ? -1 : (o1.getSequence() == o2.getSequence() ? 0 : 1);
+            }
+        });
+        files.addAll(recovered);
+        logger.info("recovered {} segment spool files from {}", recovered.size(), dir.getAbsolutePath());
+    }
+
+    /**
+     * Called by the {@link SpoolWriter} thread only.
+     *
+     * @return false if the segment has been dropped, because it doesn't fit in an empty file or the disk failed.
+     */
+    public boolean append(String key, byte[] segment) {
+        SpoolFile filled = null;
+        try {
+            synchronized (this) {
+                SpoolFile current = files.isEmpty() ? null : files.getLast();
+                if (current != null && current.append(System.currentTimeMillis(), key, segment)) {
+                    return true;
+                }
+                if (!SpoolFile.fits(fileSize, key, segment)) {
+                    // rolling would drop the oldest file for a segment no file can hold
+                    logger.warn("drop the segment of {} bytes, larger than a spool file", segment.length);
+                    return false;
+                }
+                filled = current;
+                return roll().append(System.currentTimeMillis(), key, segment);
+            }
+        } catch (IOException e) {
+            logger.error(e, "spool segment failure");
+            return false;
+        } finally {
+            // flushed out of the lock, the draining thread doesn't wait for the disk
+            if (filled != null) {
+                filled.force();
+            }
+        }
+    }
+
+    /**
+     * @return the oldest segment not drained yet and not expired, or null if there is none.
+     */
+    public synchronized SpooledSegment poll() {
+        long expireTime = System.currentTimeMillis() - maxAgeMillis;
+        while (!files.isEmpty()) {
+            SpoolFile oldest = files.getFirst();
+            SpooledSegment segment = oldest.poll();
+            if (segment == null) {
+                if (files.size() == 1) {
+                    // still the file written to
+                    return null;
+                }
+                files.removeFirst();
+                oldest.delete();
+                continue;
+            }
+            if (segment.getTimestamp() >= expireTime) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    public synchronized boolean isEmpty() {
+        return files.isEmpty() || (files.size() == 1 && files.getFirst().isDrained());
+    }
+
+    private SpoolFile roll() throws IOException {
+        while (files.size() >= maxFiles) {
+            SpoolFile dropped = files.removeFirst();
+            dropped.delete();
+            logger.warn("segment spool is full, drop the oldest spool file {}", dropped.getSequence());
+        }
+        SpoolFile file = SpoolFile.create(dir, nextSequence++, fileSize);
+        files.addLast(file);
+        return file;
+    }
+
+    public synchronized void close() {
+        for (SpoolFile file : files) {
+            file.force();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.apache.skywalking.apm.agent.kafka.upload.trace.spool;
+
+import org.apache.skywalking.apm.agent.core.logging.api.ILog;
+import org.apache.skywalking.apm.agent.core.logging.api.LogManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * One fixed size, memory-mapped, append-only spool file. Records are laid out as
+ * <pre>
+ * | int length | long timestamp | short key length | key | segment |
+ * </pre>
+ * where length covers everything after itself. A drained record gets its length negated in place, so after a restart
+ * only the records which were never drained are sent again. A zero length marks the end of the written records, the
+ * file is zero filled when it is created. A record found broken after a restart, torn by a crash or corrupted, cuts the
+ * file there.
+ *
+ * @author caoyixiong
+ */
+class SpoolFile {
+    private static final ILog logger = LogManager.getLogger(SpoolFile.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int RECORD_HEADER_SIZE = 4 + 8 + 2;
+
+    private final long sequence;
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private int writePosition;
+    private int readPosition;
+
+    private SpoolFile(long sequence, File file, MappedByteBuffer buffer) {
+        this.sequence = sequence;
+        this.file = file;
+        this.buffer = buffer;
+    }
+
+    static SpoolFile create(File dir, long sequence, int size) throws IOException {
+        File file = new File(dir, SegmentSpool.FILE_PREFIX + sequence + SegmentSpool.FILE_SUFFIX);
+        return new SpoolFile(sequence, file, map(file, size));
+    }
+
+    /**
+     * Map an existing file and find the first record not drained yet and the end of the written records.
+     */
+    static SpoolFile open(File file, long sequence) throws IOException {
+        SpoolFile spoolFile = new SpoolFile(sequence, file, map(file, (int)file.length()));
+        spoolFile.recover();
+        return spoolFile;
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(size);
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private void recover() {
+        int position = 0;
+        readPosition = -1;
+        while (position + 4 <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length == 0) {
+                break;
+            }
+            // Integer.MIN_VALUE stays negative and is rejected as too short
+            int size = Math.abs(length);
+            if (size < RECORD_HEADER_SIZE - 4 || size > buffer.capacity() - position - 4 || !keyFits(position, size)) {
+                logger.warn("truncate spool file {} at the broken record at {}", file.getAbsolutePath(), position);
+                truncate(position);
+                break;
+            }
+            if (length > 0 && readPosition < 0) {
+                readPosition = position;
+            }
+            position += 4 + size;
+        }
+        writePosition = position;
+        if (readPosition < 0) {
+            readPosition = writePosition;
+        }
+    }
+
+    private boolean keyFits(int position, int size) {
+        short keyLength = buffer.getShort(position + 4 + 8);
+        return keyLength >= 0 && keyLength <= size - (RECORD_HEADER_SIZE - 4);
+    }
+
+    /**
+     * Zero fill the file from the position, so the records appended there are terminated again.
+     */
+    private void truncate(int position) {
+        for (int i = position; i < buffer.capacity(); i++) {
+            buffer.put(i, (byte)0);
+        }
+    }
+
+    /**
+     * @return true if the record fits in an empty file of the given size.
+     */
+    static boolean fits(int fileSize, String key, byte[] segment) {
+        int keyLength = key == null ? 0 : key.getBytes(UTF_8).length;
+        // the record and the zero length terminating the records
+        return (long)RECORD_HEADER_SIZE + keyLength + segment.length + 4 <= fileSize;
+    }
+
+    /**
+     * @return false if the file has no room left for the record.
+     */
+    boolean append(long timestamp, String key, byte[] segment) {
+        byte[] keyBytes = key == null ? new byte[0] : key.getBytes(UTF_8);
+        int length = RECORD_HEADER_SIZE - 4 + keyBytes.length + segment.length;
+        // keep room for the zero length terminating the records
+        if (writePosition + 4 + length + 4 > buffer.capacity()) {
+            return false;
+        }
+        ByteBuffer record = buffer.duplicate();
+        record.position(writePosition + 4);
+        record.putLong(timestamp);
+        record.putShort((short)keyBytes.length);
+        record.put(keyBytes);
+        record.put(segment);
+        // the length is written last, a crash in between leaves the record invisible
+        buffer.putInt(writePosition, length);
+        writePosition += 4 + length;
+        return true;
+    }
+
+    /**
+     * @return the next record not drained yet, marking it drained, or null if all written records are drained.
+     */
+    SpooledSegment poll() {
+        while (readPosition < writePosition) {
+            int length = buffer.getInt(readPosition);
+            int position = readPosition + 4;
+            readPosition += 4 + Math.abs(length);
+            if (length < 0) {
+                continue;
+            }
+            buffer.putInt(position - 4, -length);
+
+            ByteBuffer record = buffer.duplicate();
+            record.position(position);
+            long timestamp = record.getLong();
+            byte[] keyBytes = new byte[record.getShort()];
+            record.get(keyBytes);
+            byte[] segment = new byte[length - 8 - 2 - keyBytes.length];
+            record.get(segment);
+            return new SpooledSegment(timestamp, keyBytes.length == 0 ? null : new String(keyBytes, UTF_8), segment);
+        }
+        return null;
+    }
+
+    boolean isDrained() {
+        return readPosition >= writePosition;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    /**
+     * The mapping itself is released by the GC, deleting a mapped file is fine on the platforms the agent runs on.
+     */
+    boolean delete() {
+        return file.delete();
+    }
+}
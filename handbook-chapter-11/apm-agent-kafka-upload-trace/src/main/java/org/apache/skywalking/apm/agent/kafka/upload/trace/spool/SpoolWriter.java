@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.apache.skywalking.apm.agent.kafka.upload.trace.spool;
+
+import org.apache.skywalking.apm.agent.core.boot.DefaultNamedThreadFactory;
+import org.apache.skywalking.apm.agent.core.context.trace.TraceSegment;
+import org.apache.skywalking.apm.agent.core.logging.api.ILog;
+import org.apache.skywalking.apm.agent.core.logging.api.LogManager;
+import org.apache.skywalking.apm.network.language.agent.UpstreamSegment;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands the segments to spool over to one writer thread through a bounded queue. The application threads dropping
+ * segments of a full buffer and the producer I/O thread failing records only enqueue them, the transform, the
+ * serialization and the disk writes of the {@link SegmentSpool} all happen on the writer thread. A segment is
+ * dropped when the queue is full.
+ *
+ * @author caoyixiong
+ */
+public class SpoolWriter {
+    private static final ILog logger = LogManager.getLogger(SpoolWriter.class);
+
+    private final SegmentSpool spool;
+    private final BlockingQueue<PendingSegment> queue;
+    private final ExecutorService executor;
+
+    public SpoolWriter(SegmentSpool spool, int queueSize) {
+        this.spool = spool;
+        this.queue = new ArrayBlockingQueue<PendingSegment>(Math.max(1, queueSize));
+        this.executor = Executors.newSingleThreadExecutor(new DefaultNamedThreadFactory("SegmentSpoolWriter"));
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        });
+    }
+
+    /**
+     * @return false if the segment has been dropped, because the queue is full.
+     */
+    public boolean offer(String key, TraceSegment traceSegment) {
+        return queue.offer(new PendingSegment(key, traceSegment, null));
+    }
+
+    /**
+     * @return false if the segment has been dropped, because the queue is full.
+     */
+    public boolean offer(String key, UpstreamSegment upstreamSegment) {
+        return queue.offer(new PendingSegment(key, null, upstreamSegment));
+    }
+
+    public SegmentSpool getSpool() {
+        return spool;
+    }
+
+    private void write() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                append(queue.take());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void append(PendingSegment pending) {
+        try {
+            UpstreamSegment upstreamSegment = pending.upstreamSegment;
+            if (upstreamSegment == null) {
+                upstreamSegment = pending.traceSegment.transform();
+            }
+            if (!spool.append(pending.key, upstreamSegment.toByteArray()) && logger.isDebugEnable()) {
+                logger.debug("One trace segment has been abandoned, cause by spool failure.");
+            }
+        } catch (Throwable t) {
+            logger.error(t, "spool segment failure");
+        }
+    }
+
+    /**
+     * Stop the writer thread, write what is still queued and flush the spool files.
+     */
+    public void close() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        PendingSegment pending;
+        while ((pending = queue.poll()) != null) {
+            append(pending);
+        }
+        spool.close();
+    }
+
+    private static class PendingSegment {
+        private final String key;
+        private final TraceSegment traceSegment;
+        private final UpstreamSegment upstreamSegment;
+
+        private PendingSegment(String key, TraceSegment traceSegment, UpstreamSegment upstreamSegment) {
+            this.key = key;
+            this.traceSegment = traceSegment;
+            this.upstreamSegment = upstreamSegment;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.apache.skywalking.apm.agent.kafka.upload.trace.spool;
+
+/**
+ * @author caoyixiong
+ */
+public class SpooledSegment {
+    private final long timestamp;
+    private final String key;
+    private final byte[] segment;
+
+    SpooledSegment(long timestamp, String key, byte[] segment) {
+        this.timestamp = timestamp;
+        this.key = key;
+        this.segment = segment;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the kafka record key the segment was sent with, may be null.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return the serialized UpstreamSegment.
+     */
+    public byte[] getSegment() {
+        return segment;
+    }
+}
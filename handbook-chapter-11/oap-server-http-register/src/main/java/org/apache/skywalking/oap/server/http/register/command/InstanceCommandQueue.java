@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.apache.skywalking.oap.server.http.register.command;
+
+import org.apache.skywalking.apm.network.common.Command;
+import org.apache.skywalking.apm.network.common.Commands;
+import org.apache.skywalking.oap.server.library.module.Service;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The commands waiting for the agents of this OAP node, by service instance id. A command offered here goes out with
+ * the next ping or sync of the instance answered by this node.
+ * <p>
+ * An instance keeps its entry only while it has commands waiting, and at most {@link
+ * #MAX_PENDING_COMMANDS} commands, the oldest ones are dropped beyond it.
+ *
+ * @author caoyixiong
+ */
+public class InstanceCommandQueue implements Service {
+    static final int MAX_PENDING_COMMANDS = 16;
+
+    private final ConcurrentMap<Integer, Pending> pendings = new ConcurrentHashMap<>();
+
+    public void offer(int serviceInstanceId, Command command) {
+        while (true) {
+            Pending pending = pendingOf(serviceInstanceId);
+            synchronized (pending) {
+                if (pending.removed) {
+                    continue;
+                }
+                if (pending.commands.size() >= MAX_PENDING_COMMANDS) {
+                    pending.commands.poll();
+                }
+                pending.commands.add(command);
+            }
+            return;
+        }
+    }
+
+    /**
+     * @return the pending commands of the instance, the shared default instance when there is none.
+     */
+    public Commands drain(int serviceInstanceId) {
+        Pending pending = pendings.get(serviceInstanceId);
+        if (pending == null) {
+            return Commands.getDefaultInstance();
+        }
+        synchronized (pending) {
+            if (pending.commands.isEmpty()) {
+                return Commands.getDefaultInstance();
+            }
+            Commands.Builder commands = Commands.newBuilder();
+            for (Command command = pending.commands.poll(); command != null; command = pending.commands.poll()) {
+                commands.addCommands(command);
+            }
+            // a concurrent offer sees it removed and takes a new entry
+            pending.removed = true;
+            pendings.remove(serviceInstanceId, pending);
+            return commands.build();
+        }
+    }
+
+    private Pending pendingOf(int serviceInstanceId) {
+        Pending pending = pendings.get(serviceInstanceId);
+        if (pending == null) {
+            Pending created = new Pending();
+            pending = pendings.putIfAbsent(serviceInstanceId, created);
+            if (pending == null) {
+                pending = created;
+            }
+        }
+        return pending;
+    }
+
+    private static class Pending {
+        private final Queue<Command> commands = new ArrayDeque<>();
+        private boolean removed;
+    }
+}
@@ -18,6 +18,7 @@
 
 package org.apache.skywalking.oap.server.http.register.module;
 
+import org.apache.skywalking.oap.server.http.register.command.InstanceCommandQueue;
 import org.apache.skywalking.oap.server.library.module.ModuleDefine;
 
 /**
@@ -31,6 +32,6 @@ public class HttpRegisterModule extends ModuleDefine {
 
     @Override
     public Class[] services() {
-        return new Class[0];
+        return new Class[] {InstanceCommandQueue.class};
     }
 }
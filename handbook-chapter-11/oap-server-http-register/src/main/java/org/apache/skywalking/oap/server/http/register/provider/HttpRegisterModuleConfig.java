@@ -0,0 +1,128 @@
+package org.apache.skywalking.oap.server.http.register.provider;
+
+import org.apache.skywalking.oap.server.library.module.ModuleConfig;
+
+/**
+ * @author caoyixiong
+ */
+class HttpRegisterModuleConfig extends ModuleConfig {
+
+    /**
+     * Max endpoint ids, and max network address ids, kept by the near cache in front of the core inventory.
+     */
+    private long nearCacheMaxSize = 100000;
+
+    /**
+     * Resolved ids are looked up in the core inventory again after this. Unit is second.
+     */
+    private long nearCacheExpireTime = 600;
+
+    /**
+     * Names the core inventory didn't assign an id yet are not looked up again until this elapsed, the agents retry
+     * on their next sync anyway. Unit is ms.
+     */
+    private long negativeCacheExpireTime = 1000;
+
+    /**
+     * Max endpoints of one service listed to a restarted agent by the endpoint snapshot.
+     */
+    private int snapshotMaxEndpointsPerService = 10000;
+
+    /**
+     * Max services whose endpoint snapshot is kept at once.
+     */
+    private int snapshotMaxServices = 1000;
+
+    /**
+     * The endpoints of a service are listed from the storage again after this, the agents downloading the snapshot
+     * meanwhile share one listing. Unit is second.
+     */
+    private long snapshotExpireTime = 60;
+
+    /**
+     * Only the latest heartbeat of every service instance and service in this interval is passed to the core
+     * inventory, 0 passes every ping at once. Unit is ms.
+     */
+    private long heartbeatFlushInterval = 10000;
+    /**
+     * Max service instance ids kept by instance uuid, so the repeated registrations of an agent don't reach the core
+     * inventory.
+     */
+    private long instanceCacheMaxSize = 100000;
+    /**
+     * The instance id of a uuid is registered to the core inventory again after this. Unit is second.
+     */
+    private long instanceCacheExpireTime = 600;
+
+    public long getNearCacheMaxSize() {
+        return nearCacheMaxSize;
+    }
+
+    public void setNearCacheMaxSize(long nearCacheMaxSize) {
+        this.nearCacheMaxSize = nearCacheMaxSize;
+    }
+
+    public long getNearCacheExpireTime() {
+        return nearCacheExpireTime;
+    }
+
+    public void setNearCacheExpireTime(long nearCacheExpireTime) {
+        this.nearCacheExpireTime = nearCacheExpireTime;
+    }
+
+    public long getNegativeCacheExpireTime() {
+        return negativeCacheExpireTime;
+    }
+
+    public void setNegativeCacheExpireTime(long negativeCacheExpireTime) {
+        this.negativeCacheExpireTime = negativeCacheExpireTime;
+    }
+
+    public int getSnapshotMaxEndpointsPerService() {
+        return snapshotMaxEndpointsPerService;
+    }
+
+    public void setSnapshotMaxEndpointsPerService(int snapshotMaxEndpointsPerService) {
+        this.snapshotMaxEndpointsPerService = snapshotMaxEndpointsPerService;
+    }
+
+    public int getSnapshotMaxServices() {
+        return snapshotMaxServices;
+    }
+
+    public void setSnapshotMaxServices(int snapshotMaxServices) {
+        this.snapshotMaxServices = snapshotMaxServices;
+    }
+
+    public long getSnapshotExpireTime() {
+        return snapshotExpireTime;
+    }
+
+    public void setSnapshotExpireTime(long snapshotExpireTime) {
+        this.snapshotExpireTime = snapshotExpireTime;
+    }
+
+    public long getHeartbeatFlushInterval() {
+        return heartbeatFlushInterval;
+    }
+
+    public void setHeartbeatFlushInterval(long heartbeatFlushInterval) {
+        this.heartbeatFlushInterval = heartbeatFlushInterval;
+    }
+
+    public long getInstanceCacheMaxSize() {
+        return instanceCacheMaxSize;
+    }
+
+    public void setInstanceCacheMaxSize(long instanceCacheMaxSize) {
+        this.instanceCacheMaxSize = instanceCacheMaxSize;
+    }
+
+    public long getInstanceCacheExpireTime() {
+        return instanceCacheExpireTime;
+    }
+
+    public void setInstanceCacheExpireTime(long instanceCacheExpireTime) {
+        this.instanceCacheExpireTime = instanceCacheExpireTime;
+    }
+}
@@ -18,32 +18,89 @@
 
 package org.apache.skywalking.oap.server.http.register.provider;
 
+import org.apache.skywalking.oap.server.core.UnexpectedException;
 import org.apache.skywalking.oap.server.core.server.JettyHandlerRegister;
+import org.apache.skywalking.oap.server.http.register.command.InstanceCommandQueue;
 import org.apache.skywalking.oap.server.http.register.module.HttpRegisterModule;
+import org.apache.skywalking.oap.server.http.register.provider.cache.EndpointSnapshotCache;
+import org.apache.skywalking.oap.server.http.register.provider.cache.InstanceRegisterCache;
+import org.apache.skywalking.oap.server.http.register.provider.cache.InventoryNearCache;
 import org.apache.skywalking.oap.server.http.register.provider.handler.rest.*;
+import org.apache.skywalking.oap.server.http.register.provider.heartbeat.HeartbeatBuffer;
+import org.apache.skywalking.oap.server.library.module.ModuleConfig;
 import org.apache.skywalking.oap.server.library.module.ModuleDefine;
+import org.apache.skywalking.oap.server.library.module.ServiceNotProvidedException;
 import org.apache.skywalking.oap.server.receiver.register.provider.RegisterModuleProvider;
 import org.apache.skywalking.oap.server.receiver.sharing.server.SharingServerModule;
+import org.apache.skywalking.oap.server.telemetry.TelemetryModule;
+
+import java.util.Arrays;
 
 /**
  * @author peng-yongsheng
  */
 public class HttpRegisterModuleProvider extends RegisterModuleProvider {
 
+    private final HttpRegisterModuleConfig moduleConfig;
+    private final InstanceCommandQueue commandQueue;
+
+    public HttpRegisterModuleProvider() {
+        this.moduleConfig = new HttpRegisterModuleConfig();
+        this.commandQueue = new InstanceCommandQueue();
+    }
+
     @Override
     public Class<? extends ModuleDefine> module() {
         return HttpRegisterModule.class;
     }
 
+    @Override
+    public ModuleConfig createConfigBeanIfAbsent() {
+        return moduleConfig;
+    }
+
+    @Override
+    public void prepare() {
+        super.prepare();
+        try {
+            this.registerServiceImplementation(InstanceCommandQueue.class, commandQueue);
+        } catch (ServiceNotProvidedException e) {
+            throw new UnexpectedException(e.getMessage(), e);
+        }
+    }
+
     @Override
     public void start() {
         super.start();
 
         JettyHandlerRegister jettyHandlerRegister = getManager().find(SharingServerModule.NAME).provider().getService(JettyHandlerRegister.class);
         jettyHandlerRegister.addHandler(new ServiceRegisterServletHandler(getManager()));
-        jettyHandlerRegister.addHandler(new ServiceInstanceRegisterServletHandler(getManager()));
-        jettyHandlerRegister.addHandler(new ServiceInstancePingServiceHandler(getManager()));
-        jettyHandlerRegister.addHandler(new EndpointRegisterServiceHandler(getManager()));
-        jettyHandlerRegister.addHandler(new NetworkAddressRegisterServletHandler(getManager()));
+        InstanceRegisterCache instanceRegisterCache = new InstanceRegisterCache(moduleConfig.getInstanceCacheMaxSize(),
+            moduleConfig.getInstanceCacheExpireTime());
+        jettyHandlerRegister.addHandler(new ServiceInstanceRegisterServletHandler(getManager(), instanceRegisterCache));
+        InventoryNearCache nearCache = new InventoryNearCache(getManager(), moduleConfig.getNearCacheMaxSize(),
+            moduleConfig.getNearCacheExpireTime(), moduleConfig.getNegativeCacheExpireTime());
+        HeartbeatBuffer heartbeatBuffer = new HeartbeatBuffer(getManager(), moduleConfig.getHeartbeatFlushInterval());
+        heartbeatBuffer.start();
+        ServiceInstancePingServiceHandler pingHandler = new ServiceInstancePingServiceHandler(getManager(), heartbeatBuffer,
+            commandQueue, instanceRegisterCache);
+        EndpointRegisterServiceHandler endpointHandler = new EndpointRegisterServiceHandler(getManager(), nearCache);
+        NetworkAddressRegisterServletHandler networkAddressHandler = new NetworkAddressRegisterServletHandler(getManager(), nearCache);
+        jettyHandlerRegister.addHandler(pingHandler);
+        jettyHandlerRegister.addHandler(endpointHandler);
+        jettyHandlerRegister.addHandler(networkAddressHandler);
+        jettyHandlerRegister.addHandler(new ServiceInstanceSyncServiceHandler(getManager(), pingHandler,
+            endpointHandler, networkAddressHandler));
+        jettyHandlerRegister.addHandler(new EndpointSnapshotServiceHandler(getManager(), new EndpointSnapshotCache(getManager(),
+            moduleConfig.getSnapshotMaxServices(), moduleConfig.getSnapshotMaxEndpointsPerService(),
+            moduleConfig.getSnapshotExpireTime())));
+    }
+
+    @Override
+    public String[] requiredModules() {
+        String[] requiredModules = super.requiredModules();
+        String[] withTelemetry = Arrays.copyOf(requiredModules, requiredModules.length + 1);
+        withTelemetry[requiredModules.length] = TelemetryModule.NAME;
+        return withTelemetry;
     }
 }
@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.apache.skywalking.oap.server.http.register.provider.cache;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.apache.skywalking.oap.server.core.query.entity.Endpoint;
+import org.apache.skywalking.oap.server.core.storage.StorageModule;
+import org.apache.skywalking.oap.server.core.storage.query.IMetadataQueryDAO;
+import org.apache.skywalking.oap.server.library.module.ModuleManager;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The entry endpoints known for a service, listed from the storage once and shared by the agents downloading them
+ * page by page for a while. The agents of a service restart together on every deployment, they don't each query the
+ * storage.
+ *
+ * @author caoyixiong
+ */
+public class EndpointSnapshotCache {
+    private final LoadingCache<Integer, List<Endpoint>> snapshots;
+
+    /**
+     * @param maxServices            max services whose snapshot is kept at once
+     * @param maxEndpointsPerService max endpoints listed for one service
+     */
+    public EndpointSnapshotCache(ModuleManager moduleManager, long maxServices, final int maxEndpointsPerService,
+        long expireTime) {
+        final IMetadataQueryDAO metadataQueryDAO = moduleManager.find(StorageModule.NAME).provider().getService(IMetadataQueryDAO.class);
+        this.snapshots = CacheBuilder.newBuilder()
+            .maximumSize(maxServices)
+            .expireAfterWrite(expireTime, TimeUnit.SECONDS)
+            .build(new CacheLoader<Integer, List<Endpoint>>() {
+                @Override
+                public List<Endpoint> load(Integer serviceId) throws IOException {
+                    return metadataQueryDAO.searchEndpoint(null, String.valueOf(serviceId), maxEndpointsPerService);
+                }
+            });
+    }
+
+    /**
+     * @return the endpoints of the service from offset on, at most limit of them.
+     */
+    public List<Endpoint> page(int serviceId, int offset, int limit) throws IOException {
+        List<Endpoint> endpoints;
+        try {
+            endpoints = snapshots.get(serviceId);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw new IOException("list the endpoints of service " + serviceId + " failure.", e.getCause());
+        }
+        int from = Math.min(offset, endpoints.size());
+        return endpoints.subList(from, (int)Math.min(endpoints.size(), (long)from + limit));
+    }
+}
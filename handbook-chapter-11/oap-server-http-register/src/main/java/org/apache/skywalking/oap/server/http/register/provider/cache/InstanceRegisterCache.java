@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.apache.skywalking.oap.server.http.register.provider.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.apache.skywalking.oap.server.core.Const;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The service instance ids by instance uuid. An agent registers again on every tick until it sees its uuid in the
+ * response, so a slow inventory would take the same registration many times over. A uuid registered already is
+ * answered at once, and the registrations of one uuid in flight together take one inventory call, the others wait
+ * for its id.
+ * <p>
+ * An instance not assigned an id yet is registered again by the next request. The uuid of an agent told to reset is
+ * forgotten, so it gets a new id.
+ *
+ * @author caoyixiong
+ */
+public class InstanceRegisterCache {
+    private final Cache<String, RegisteredInstance> instances;
+
+    public InstanceRegisterCache(long maxSize, long expireTime) {
+        this.instances = CacheBuilder.newBuilder().maximumSize(maxSize).expireAfterWrite(expireTime, TimeUnit.SECONDS).build();
+    }
+
+    /**
+     * @return the instance id, {@link Const#NONE} if the core inventory didn't assign it yet.
+     */
+    public int getOrRegister(final int serviceId, String instanceUUID, final Registration registration) {
+        RegisteredInstance instance = instances.getIfPresent(instanceUUID);
+        if (instance != null && instance.serviceId == serviceId) {
+            return instance.instanceId;
+        }
+        if (instance != null) {
+            // the uuid moved to another service, which assigns it another id
+            instances.asMap().remove(instanceUUID, instance);
+        }
+        try {
+            instance = instances.get(instanceUUID, new Callable<RegisteredInstance>() {
+                @Override
+                public RegisteredInstance call() {
+                    return new RegisteredInstance(serviceId, registration.register());
+                }
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        if (instance.serviceId != serviceId) {
+            // loaded meanwhile for the service the uuid belonged to before
+            return registration.register();
+        }
+        if (instance.instanceId == Const.NONE) {
+            instances.asMap().remove(instanceUUID, instance);
+        }
+        return instance.instanceId;
+    }
+
+    public void invalidate(String instanceUUID) {
+        instances.invalidate(instanceUUID);
+    }
+
+    /**
+     * Registers the instance to the core inventory.
+     */
+    public interface Registration {
+        /**
+         * @return the instance id, {@link Const#NONE} if it isn't assigned yet.
+         */
+        int register();
+    }
+
+    private static final class RegisteredInstance {
+        private final int serviceId;
+        private final int instanceId;
+
+        private RegisteredInstance(int serviceId, int instanceId) {
+            this.serviceId = serviceId;
+            this.instanceId = instanceId;
+        }
+    }
+}
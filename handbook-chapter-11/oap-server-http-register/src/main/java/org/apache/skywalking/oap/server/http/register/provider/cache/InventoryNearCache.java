@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.apache.skywalking.oap.server.http.register.provider.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.skywalking.oap.server.core.Const;
+import org.apache.skywalking.oap.server.core.CoreModule;
+import org.apache.skywalking.oap.server.core.register.service.IEndpointInventoryRegister;
+import org.apache.skywalking.oap.server.core.register.service.INetworkAddressInventoryRegister;
+import org.apache.skywalking.oap.server.core.source.DetectPoint;
+import org.apache.skywalking.oap.server.http.register.provider.telemetry.RegisterMetrics;
+import org.apache.skywalking.oap.server.library.module.ModuleManager;
+import org.apache.skywalking.oap.server.telemetry.TelemetryModule;
+import org.apache.skywalking.oap.server.telemetry.api.CounterMetrics;
+import org.apache.skywalking.oap.server.telemetry.api.HistogramMetrics;
+import org.apache.skywalking.oap.server.telemetry.api.MetricsCreator;
+import org.apache.skywalking.oap.server.telemetry.api.MetricsTag;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Answers the endpoint and network address lookups of the register handlers for names already resolved, without
+ * reaching the core inventory.
+ * <p>
+ * A name the inventory didn't assign an id yet is remembered for a short while too. Each miss queues the name for
+ * registration in the core again, and the agents ask again on their next sync anyway.
+ *
+ * @author caoyixiong
+ */
+public class InventoryNearCache {
+    private final IEndpointInventoryRegister endpointInventoryRegister;
+    private final INetworkAddressInventoryRegister networkAddressInventoryRegister;
+
+    private final Cache<EndpointKey, Integer> endpointIds;
+    private final Cache<EndpointKey, Boolean> unassignedEndpoints;
+    private final Cache<String, Integer> addressIds;
+    private final Cache<String, Boolean> unassignedAddresses;
+
+    private final CounterMetrics endpointHit;
+    private final CounterMetrics endpointNegativeHit;
+    private final CounterMetrics endpointMiss;
+    private final CounterMetrics addressHit;
+    private final CounterMetrics addressNegativeHit;
+    private final CounterMetrics addressMiss;
+    private final HistogramMetrics endpointInventoryLatency;
+    private final HistogramMetrics addressInventoryLatency;
+
+    public InventoryNearCache(ModuleManager moduleManager, long maxSize, long expireTime, long negativeExpireTime) {
+        this.endpointInventoryRegister = moduleManager.find(CoreModule.NAME).provider().getService(IEndpointInventoryRegister.class);
+        this.networkAddressInventoryRegister = moduleManager.find(CoreModule.NAME).provider().getService(INetworkAddressInventoryRegister.class);
+
+        this.endpointIds = CacheBuilder.newBuilder().maximumSize(maxSize).expireAfterWrite(expireTime, TimeUnit.SECONDS).build();
+        this.unassignedEndpoints = CacheBuilder.newBuilder().maximumSize(maxSize).expireAfterWrite(negativeExpireTime, TimeUnit.MILLISECONDS).build();
+        this.addressIds = CacheBuilder.newBuilder().maximumSize(maxSize).expireAfterWrite(expireTime, TimeUnit.SECONDS).build();
+        this.unassignedAddresses = CacheBuilder.newBuilder().maximumSize(maxSize).expireAfterWrite(negativeExpireTime, TimeUnit.MILLISECONDS).build();
+
+        MetricsCreator metricsCreator = moduleManager.find(TelemetryModule.NAME).provider().getService(MetricsCreator.class);
+        MetricsTag.Keys type = new MetricsTag.Keys("type");
+        MetricsTag.Values endpoint = new MetricsTag.Values("endpoint");
+        MetricsTag.Values address = new MetricsTag.Values("network_address");
+        this.endpointHit = metricsCreator.createCounter("http_register_near_cache_hit", "The lookups answered by the register near cache", type, endpoint);
+        this.endpointNegativeHit = metricsCreator.createCounter("http_register_near_cache_negative_hit", "The lookups of unassigned names answered by the register near cache", type, endpoint);
+        this.endpointMiss = metricsCreator.createCounter("http_register_near_cache_miss", "The lookups passed to the core inventory by the register near cache", type, endpoint);
+        this.addressHit = metricsCreator.createCounter("http_register_near_cache_hit", "The lookups answered by the register near cache", type, address);
+        this.addressNegativeHit = metricsCreator.createCounter("http_register_near_cache_negative_hit", "The lookups of unassigned names answered by the register near cache", type, address);
+        this.addressMiss = metricsCreator.createCounter("http_register_near_cache_miss", "The lookups passed to the core inventory by the register near cache", type, address);
+        this.endpointInventoryLatency = RegisterMetrics.inventoryLatency(moduleManager, "endpoint");
+        this.addressInventoryLatency = RegisterMetrics.inventoryLatency(moduleManager, "network_address");
+    }
+
+    /**
+     * @return the endpoint id, {@link Const#NONE} if the core inventory didn't assign it yet.
+     */
+    public int getOrCreateEndpoint(int serviceId, String endpointName, DetectPoint detectPoint) {
+        EndpointKey key = new EndpointKey(serviceId, endpointName, detectPoint);
+        Integer endpointId = endpointIds.getIfPresent(key);
+        if (endpointId != null) {
+            endpointHit.inc();
+            return endpointId;
+        }
+        if (unassignedEndpoints.getIfPresent(key) != null) {
+            endpointNegativeHit.inc();
+            return Const.NONE;
+        }
+        endpointMiss.inc();
+        int id;
+        HistogramMetrics.Timer timer = endpointInventoryLatency.createTimer();
+        try {
+            id = endpointInventoryRegister.getOrCreate(serviceId, endpointName, detectPoint);
+        } finally {
+            timer.finish();
+        }
+        if (id == Const.NONE) {
+            unassignedEndpoints.put(key, Boolean.TRUE);
+        } else {
+            endpointIds.put(key, id);
+        }
+        return id;
+    }
+
+    /**
+     * @return the network address id, {@link Const#NONE} if the core inventory didn't assign it yet.
+     */
+    public int getOrCreateAddress(String networkAddress) {
+        Integer addressId = addressIds.getIfPresent(networkAddress);
+        if (addressId != null) {
+            addressHit.inc();
+            return addressId;
+        }
+        if (unassignedAddresses.getIfPresent(networkAddress) != null) {
+            addressNegativeHit.inc();
+            return Const.NONE;
+        }
+        addressMiss.inc();
+        int id;
+        HistogramMetrics.Timer timer = addressInventoryLatency.createTimer();
+        try {
+            id = networkAddressInventoryRegister.getOrCreate(networkAddress, null);
+        } finally {
+            timer.finish();
+        }
+        if (id == Const.NONE) {
+            unassignedAddresses.put(networkAddress, Boolean.TRUE);
+        } else {
+            addressIds.put(networkAddress, id);
+        }
+        return id;
+    }
+
+    private static final class EndpointKey {
+        private final int serviceId;
+        private final String endpointName;
+        private final DetectPoint detectPoint;
+
+        private EndpointKey(int serviceId, String endpointName, DetectPoint detectPoint) {
+            this.serviceId = serviceId;
+            this.endpointName = endpointName;
+            this.detectPoint = detectPoint;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            EndpointKey key = (EndpointKey)o;
+            return serviceId == key.serviceId && detectPoint == key.detectPoint && endpointName.equals(key.endpointName);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = serviceId;
+            result = 31 * result + endpointName.hashCode();
+            result = 31 * result + (detectPoint == null ? 0 : detectPoint.hashCode());
+            return result;
+        }
+    }
+}
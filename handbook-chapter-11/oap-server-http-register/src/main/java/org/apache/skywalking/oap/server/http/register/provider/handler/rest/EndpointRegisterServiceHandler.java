@@ -18,41 +18,42 @@
 
 package org.apache.skywalking.oap.server.http.register.provider.handler.rest;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import org.apache.skywalking.apm.network.language.agent.SpanType;
+import org.apache.skywalking.apm.network.register.v2.Endpoint;
+import org.apache.skywalking.apm.network.register.v2.EndpointMapping;
+import org.apache.skywalking.apm.network.register.v2.EndpointMappingElement;
+import org.apache.skywalking.apm.network.register.v2.Enpoints;
 import org.apache.skywalking.oap.server.core.Const;
-import org.apache.skywalking.oap.server.core.CoreModule;
-import org.apache.skywalking.oap.server.core.register.service.IEndpointInventoryRegister;
 import org.apache.skywalking.oap.server.core.source.DetectPoint;
+import org.apache.skywalking.oap.server.http.register.provider.cache.InventoryNearCache;
 import org.apache.skywalking.oap.server.library.module.ModuleManager;
 import org.apache.skywalking.oap.server.library.server.jetty.ArgumentsParseException;
-import org.apache.skywalking.oap.server.library.server.jetty.JettyJsonHandler;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
-import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 /**
  * @author caoyixiong
  */
-public class EndpointRegisterServiceHandler extends JettyJsonHandler {
-
-    private static final Logger logger = LoggerFactory.getLogger(EndpointRegisterServiceHandler.class);
-
-    private final IEndpointInventoryRegister inventoryService;
-    private final Gson gson = new Gson();
+public class EndpointRegisterServiceHandler extends RegisterHandler {
 
+    private final InventoryNearCache nearCache;
     private static final String SERVICE_ID = "si";
     private static final String ENDPOINT_NAME = "en";
     private static final String ENDPOINT_ID = "ei";
     private static final String SPAN_TYPE = "st";
+    /**
+     * The detect point the agents send for the endpoints of local spans, which the wire format has no value for.
+     */
+    private static final int LOCAL_DETECT_POINT = -1;
+    private static final int NO_SPAN_TYPE = -1;
 
-    public EndpointRegisterServiceHandler(ModuleManager moduleManager) {
-        this.inventoryService = moduleManager.find(CoreModule.NAME).provider().getService(IEndpointInventoryRegister.class);
+    public EndpointRegisterServiceHandler(ModuleManager moduleManager, InventoryNearCache nearCache) {
+        super(moduleManager);
+        this.nearCache = nearCache;
     }
 
     @Override
@@ -61,36 +62,109 @@ public class EndpointRegisterServiceHandler extends JettyJsonHandler {
     }
 
     @Override
-    protected JsonElement doGet(HttpServletRequest req) throws ArgumentsParseException {
-        throw new UnsupportedOperationException();
+    protected void doJsonPost(JsonReader reader, JsonWriter writer) throws ArgumentsParseException, IOException {
+        int elements = 0;
+        reader.beginArray();
+        writer.beginArray();
+        while (reader.hasNext()) {
+            elements++;
+            int serviceId = Const.NONE;
+            String endpointName = null;
+            int spanTypeId = NO_SPAN_TYPE;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case SERVICE_ID:
+                        serviceId = reader.nextInt();
+                        break;
+                    case ENDPOINT_NAME:
+                        endpointName = reader.nextString();
+                        break;
+                    case SPAN_TYPE:
+                        spanTypeId = reader.nextInt();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (endpointName == null) {
+                throw new ArgumentsParseException("endpoint name is missing");
+            }
+
+            int endpointId = nearCache.getOrCreateEndpoint(serviceId, endpointName, detectPointOfSpanType(spanTypeId));
+
+            if (endpointId != Const.NONE) {
+                writer.beginObject();
+                writer.name(SERVICE_ID).value(serviceId);
+                writer.name(ENDPOINT_NAME).value(endpointName);
+                writer.name(ENDPOINT_ID).value(endpointId);
+                writer.name(SPAN_TYPE).value(spanTypeId);
+                writer.endObject();
+            }
+        }
+        reader.endArray();
+        writer.endArray();
+        metrics.batch(elements);
     }
 
     @Override
-    protected JsonElement doPost(HttpServletRequest req) throws ArgumentsParseException {
-        JsonArray responseArray = new JsonArray();
-        try {
-            JsonArray endpoints = gson.fromJson(req.getReader(), JsonArray.class);
-            for (JsonElement endpoint : endpoints) {
-
-                int serviceId = endpoint.getAsJsonObject().get(SERVICE_ID).getAsInt();
-                String endpointName = endpoint.getAsJsonObject().get(ENDPOINT_NAME).getAsString();
-                int spanTypeId = endpoint.getAsJsonObject().get(SPAN_TYPE).getAsInt();
-                SpanType spanType = SpanType.forNumber(spanTypeId);
-
-                int endpointId = inventoryService.getOrCreate(serviceId, endpointName, DetectPoint.fromSpanType(spanType));
-
-                if (endpointId != Const.NONE) {
-                    JsonObject mapping = new JsonObject();
-                    mapping.addProperty(SERVICE_ID, serviceId);
-                    mapping.addProperty(ENDPOINT_NAME, endpointName);
-                    mapping.addProperty(ENDPOINT_ID, endpointId);
-                    mapping.addProperty(SPAN_TYPE, spanTypeId);
-                    responseArray.add(mapping);
-                }
+    protected void doProtobufPost(InputStream body, OutputStream out) throws ArgumentsParseException, IOException {
+        register(Enpoints.parseFrom(body)).writeTo(out);
+    }
+
+    EndpointMapping register(Enpoints endpoints) throws ArgumentsParseException {
+        metrics.batch(endpoints.getEndpointsCount());
+        EndpointMapping.Builder mapping = EndpointMapping.newBuilder();
+        for (Endpoint endpoint : endpoints.getEndpointsList()) {
+            int serviceId = endpoint.getServiceId();
+            String endpointName = endpoint.getEndpointName();
+
+            int endpointId = nearCache.getOrCreateEndpoint(serviceId, endpointName, detectPointOf(endpoint.getFromValue()));
+
+            if (endpointId != Const.NONE) {
+                mapping.addElements(EndpointMappingElement.newBuilder()
+                    .setServiceId(serviceId)
+                    .setEndpointName(endpointName)
+                    .setEndpointId(endpointId)
+                    .setFromValue(endpoint.getFromValue()));
             }
-        } catch (IOException e) {
-            logger.error(e.getMessage(), e);
         }
-        return responseArray;
+        return mapping.build();
+    }
+
+    /**
+     * The endpoints of local spans are registered as client endpoints, the same as in {@link #detectPointOf(int)}.
+     */
+    private static DetectPoint detectPointOfSpanType(int spanTypeId) throws ArgumentsParseException {
+        switch (spanTypeId) {
+            case SpanType.Entry_VALUE:
+                return DetectPoint.SERVER;
+            case SpanType.Exit_VALUE:
+            case SpanType.Local_VALUE:
+                return DetectPoint.CLIENT;
+            case NO_SPAN_TYPE:
+                throw new ArgumentsParseException("endpoint span type is missing");
+            default:
+                throw new ArgumentsParseException("unknown endpoint span type " + spanTypeId);
+        }
+    }
+
+    /**
+     * The endpoints of local spans are registered as client endpoints, like the grpc receiver does for every span not
+     * an entry.
+     */
+    private static DetectPoint detectPointOf(int fromValue) throws ArgumentsParseException {
+        switch (fromValue) {
+            case org.apache.skywalking.apm.network.common.DetectPoint.server_VALUE:
+                return DetectPoint.SERVER;
+            case org.apache.skywalking.apm.network.common.DetectPoint.client_VALUE:
+            case LOCAL_DETECT_POINT:
+                return DetectPoint.CLIENT;
+            case org.apache.skywalking.apm.network.common.DetectPoint.proxy_VALUE:
+                return DetectPoint.PROXY;
+            default:
+                throw new ArgumentsParseException("unknown endpoint detect point " + fromValue);
+        }
     }
 }
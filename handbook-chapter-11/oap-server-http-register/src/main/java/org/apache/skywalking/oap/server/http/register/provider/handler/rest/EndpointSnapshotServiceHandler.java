@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.apache.skywalking.oap.server.http.register.provider.handler.rest;
+
+import com.google.gson.stream.JsonWriter;
+import org.apache.skywalking.apm.network.common.DetectPoint;
+import org.apache.skywalking.apm.network.language.agent.SpanType;
+import org.apache.skywalking.apm.network.register.v2.EndpointMapping;
+import org.apache.skywalking.apm.network.register.v2.EndpointMappingElement;
+import org.apache.skywalking.oap.server.core.query.entity.Endpoint;
+import org.apache.skywalking.oap.server.http.register.provider.cache.EndpointSnapshotCache;
+import org.apache.skywalking.oap.server.http.register.provider.telemetry.RegisterMetrics;
+import org.apache.skywalking.oap.server.library.module.ModuleManager;
+import org.apache.skywalking.oap.server.library.server.jetty.JettyHandler;
+import org.apache.skywalking.oap.server.telemetry.api.HistogramMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Lists the entry endpoints already registered for a service, so a restarted agent fills its dictionary at once
+ * instead of registering the endpoints again one sync at a time.
+ * <p>
+ * {@code GET /v6/endpoint/snapshot?si={serviceId}&of={offset}&ps={pageSize}} answers a page of the same elements the
+ * endpoint register path does, as json or as an endpoint mapping message when the agent accepts {@code
+ * application/x-protobuf}. A page shorter than the page size is the last one.
+ *
+ * @author caoyixiong
+ */
+public class EndpointSnapshotServiceHandler extends JettyHandler {
+    private static final Logger logger = LoggerFactory.getLogger(EndpointSnapshotServiceHandler.class);
+
+    private final EndpointSnapshotCache snapshotCache;
+    private final RegisterMetrics metrics;
+    private static final String SERVICE_ID = "si";
+    private static final String OFFSET = "of";
+    private static final String PAGE_SIZE = "ps";
+    private static final String ENDPOINT_NAME = "en";
+    private static final String ENDPOINT_ID = "ei";
+    private static final String SPAN_TYPE = "st";
+
+    public EndpointSnapshotServiceHandler(ModuleManager moduleManager, EndpointSnapshotCache snapshotCache) {
+        this.snapshotCache = snapshotCache;
+        this.metrics = new RegisterMetrics(moduleManager, pathSpec());
+    }
+
+    @Override
+    public String pathSpec() {
+        return "/v6/endpoint/snapshot";
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        HistogramMetrics.Timer timer = metrics.startRequest();
+        boolean answered = false;
+        try {
+            answered = page(req, resp);
+        } finally {
+            timer.finish();
+            if (!answered) {
+                metrics.error();
+            }
+        }
+    }
+
+    /**
+     * @return false if the request was answered with an error.
+     */
+    private boolean page(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        int serviceId;
+        int offset;
+        int pageSize;
+        try {
+            serviceId = Integer.parseInt(req.getParameter(SERVICE_ID));
+            offset = Integer.parseInt(req.getParameter(OFFSET));
+            pageSize = Integer.parseInt(req.getParameter(PAGE_SIZE));
+        } catch (NumberFormatException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "service id, offset and page size are required");
+            return false;
+        }
+        if (offset < 0 || pageSize <= 0) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "offset or page size out of range");
+            return false;
+        }
+
+        List<Endpoint> endpoints;
+        try {
+            endpoints = snapshotCache.page(serviceId, offset, pageSize);
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return false;
+        }
+        metrics.batch(endpoints.size());
+
+        resp.setStatus(HttpServletResponse.SC_OK);
+        if (acceptsProtobuf(req)) {
+            resp.setContentType(RegisterHandler.PROTOBUF_CONTENT_TYPE);
+            EndpointMapping.Builder mapping = EndpointMapping.newBuilder();
+            for (Endpoint endpoint : endpoints) {
+                mapping.addElements(EndpointMappingElement.newBuilder()
+                    .setServiceId(serviceId)
+                    .setEndpointName(endpoint.getName())
+                    .setEndpointId(Integer.parseInt(endpoint.getId()))
+                    .setFrom(DetectPoint.server));
+            }
+            mapping.build().writeTo(resp.getOutputStream());
+        } else {
+            resp.setContentType("application/json");
+            resp.setCharacterEncoding("utf-8");
+            JsonWriter writer = new JsonWriter(resp.getWriter());
+            writer.beginArray();
+            for (Endpoint endpoint : endpoints) {
+                writer.beginObject();
+                writer.name(SERVICE_ID).value(serviceId);
+                writer.name(ENDPOINT_NAME).value(endpoint.getName());
+                writer.name(ENDPOINT_ID).value(Integer.parseInt(endpoint.getId()));
+                writer.name(SPAN_TYPE).value(SpanType.Entry_VALUE);
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.flush();
+        }
+        return true;
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+    }
+
+    private static boolean acceptsProtobuf(HttpServletRequest req) {
+        String accept = req.getHeader("Accept");
+        return accept != null && accept.startsWith(RegisterHandler.PROTOBUF_CONTENT_TYPE);
+    }
+}
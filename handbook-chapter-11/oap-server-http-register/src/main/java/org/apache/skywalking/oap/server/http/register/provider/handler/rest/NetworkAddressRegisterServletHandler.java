@@ -18,34 +18,34 @@
 
 package org.apache.skywalking.oap.server.http.register.provider.handler.rest;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import org.apache.skywalking.oap.server.core.CoreModule;
-import org.apache.skywalking.oap.server.core.register.service.INetworkAddressInventoryRegister;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import org.apache.skywalking.apm.network.common.KeyIntValuePair;
+import org.apache.skywalking.apm.network.register.v2.NetAddressMapping;
+import org.apache.skywalking.apm.network.register.v2.NetAddresses;
+import org.apache.skywalking.oap.server.http.register.provider.cache.InventoryNearCache;
 import org.apache.skywalking.oap.server.library.module.ModuleManager;
-import org.apache.skywalking.oap.server.library.server.jetty.JettyJsonHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 /**
  * @author caoyixiong
  */
-public class NetworkAddressRegisterServletHandler extends JettyJsonHandler {
+public class NetworkAddressRegisterServletHandler extends RegisterHandler {
 
     private static final Logger logger = LoggerFactory.getLogger(NetworkAddressRegisterServletHandler.class);
 
-    private final INetworkAddressInventoryRegister networkAddressInventoryRegister;
-    private Gson gson = new Gson();
+    private final InventoryNearCache nearCache;
     private static final String NETWORK_ADDRESS = "nd";
     private static final String ADDRESS_ID = "ai";
 
-    public NetworkAddressRegisterServletHandler(ModuleManager moduleManager) {
-        this.networkAddressInventoryRegister = moduleManager.find(CoreModule.NAME).provider().getService(INetworkAddressInventoryRegister.class);
+    public NetworkAddressRegisterServletHandler(ModuleManager moduleManager, InventoryNearCache nearCache) {
+        super(moduleManager);
+        this.nearCache = nearCache;
     }
 
     @Override
@@ -54,31 +54,45 @@ public class NetworkAddressRegisterServletHandler extends JettyJsonHandler {
     }
 
     @Override
-    protected JsonElement doGet(HttpServletRequest req) {
-        throw new UnsupportedOperationException();
+    protected void doJsonPost(JsonReader reader, JsonWriter writer) throws IOException {
+        int elements = 0;
+        reader.beginArray();
+        writer.beginArray();
+        while (reader.hasNext()) {
+            elements++;
+            String networkAddress = reader.nextString();
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("network getAddress register, network getAddress: {}", networkAddress);
+            }
+
+            int addressId = nearCache.getOrCreateAddress(networkAddress);
+            writer.beginObject();
+            writer.name(ADDRESS_ID).value(addressId);
+            writer.name(NETWORK_ADDRESS).value(networkAddress);
+            writer.endObject();
+        }
+        reader.endArray();
+        writer.endArray();
+        metrics.batch(elements);
     }
 
     @Override
-    protected JsonElement doPost(HttpServletRequest req) {
-        JsonArray responseArray = new JsonArray();
-        try {
-            JsonArray networkAddresses = gson.fromJson(req.getReader(), JsonArray.class);
-            for (int i = 0; i < networkAddresses.size(); i++) {
-                String networkAddress = networkAddresses.get(i).getAsString();
-
-                if (logger.isDebugEnabled()) {
-                    logger.debug("network getAddress register, network getAddress: {}", networkAddress);
-                }
+    protected void doProtobufPost(InputStream body, OutputStream out) throws IOException {
+        register(NetAddresses.parseFrom(body)).writeTo(out);
+    }
 
-                int addressId = networkAddressInventoryRegister.getOrCreate(networkAddress, null);
-                JsonObject mapping = new JsonObject();
-                mapping.addProperty(ADDRESS_ID, addressId);
-                mapping.addProperty(NETWORK_ADDRESS, networkAddress);
-                responseArray.add(mapping);
+    NetAddressMapping register(NetAddresses networkAddresses) {
+        metrics.batch(networkAddresses.getAddressesCount());
+        NetAddressMapping.Builder mapping = NetAddressMapping.newBuilder();
+        for (String networkAddress : networkAddresses.getAddressesList()) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("network getAddress register, network getAddress: {}", networkAddress);
             }
-        } catch (IOException e) {
-            logger.error(e.getMessage(), e);
+
+            int addressId = nearCache.getOrCreateAddress(networkAddress);
+            mapping.addAddressIds(KeyIntValuePair.newBuilder().setKey(networkAddress).setValue(addressId));
         }
-        return responseArray;
+        return mapping.build();
     }
 }
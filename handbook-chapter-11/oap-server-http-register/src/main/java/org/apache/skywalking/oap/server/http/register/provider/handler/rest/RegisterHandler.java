@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.apache.skywalking.oap.server.http.register.provider.handler.rest;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import org.apache.skywalking.oap.server.http.register.provider.telemetry.RegisterMetrics;
+import org.apache.skywalking.oap.server.library.module.ModuleManager;
+import org.apache.skywalking.oap.server.library.server.jetty.ArgumentsParseException;
+import org.apache.skywalking.oap.server.library.server.jetty.JettyHandler;
+import org.apache.skywalking.oap.server.telemetry.api.HistogramMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Base of the register handlers, which speak json or protobuf depending on the content type of the request.
+ * <p>
+ * Agents posting {@code application/x-protobuf} get the register v2 protobuf messages back, everything else is
+ * handled as json, so the agents of either format share the same paths. Json is streamed through gson's {@link
+ * JsonReader} and {@link JsonWriter} instead of being built into element trees.
+ * <p>
+ * Every request is timed and every failed one counted, tagged by the path of the handler.
+ *
+ * @author caoyixiong
+ */
+public abstract class RegisterHandler extends JettyHandler {
+    private static final Logger logger = LoggerFactory.getLogger(RegisterHandler.class);
+
+    static final String PROTOBUF_CONTENT_TYPE = "application/x-protobuf";
+
+    protected final RegisterMetrics metrics;
+
+    protected RegisterHandler(ModuleManager moduleManager) {
+        this.metrics = new RegisterMetrics(moduleManager, pathSpec());
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        HistogramMetrics.Timer timer = metrics.startRequest();
+        boolean succeeded = false;
+        try {
+            if (isProtobuf(req)) {
+                resp.setContentType(PROTOBUF_CONTENT_TYPE);
+                resp.setStatus(HttpServletResponse.SC_OK);
+                OutputStream out = resp.getOutputStream();
+                doProtobufPost(RequestBodies.inputStreamOf(req), out);
+                out.flush();
+            } else {
+                resp.setContentType("application/json");
+                resp.setCharacterEncoding("utf-8");
+                resp.setStatus(HttpServletResponse.SC_OK);
+                JsonWriter writer = new JsonWriter(resp.getWriter());
+                doJsonPost(new JsonReader(RequestBodies.readerOf(req)), writer);
+                writer.flush();
+            }
+            succeeded = true;
+        } catch (ArgumentsParseException | IOException | IllegalStateException | NumberFormatException e) {
+            logger.error(e.getMessage(), e);
+            if (resp.isCommitted()) {
+                // part of the response is on the wire already, the agent fails to parse it and retries
+                return;
+            }
+            resp.reset();
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+        } catch (RuntimeException e) {
+            // the core inventory or a malformed message failed, the agent retries the whole request later
+            logger.error(e.getMessage(), e);
+            if (!resp.isCommitted()) {
+                resp.reset();
+                resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+        } finally {
+            timer.finish();
+            if (!succeeded) {
+                metrics.error();
+            }
+        }
+    }
+
+    /**
+     * Handle a json request. The request is read and the response is written element by element, so the memory taken
+     * doesn't grow with the size of the batch.
+     */
+    protected abstract void doJsonPost(JsonReader reader, JsonWriter writer) throws ArgumentsParseException, IOException;
+
+    /**
+     * Handle a protobuf request, the response message is written into the given stream.
+     */
+    protected abstract void doProtobufPost(InputStream body, OutputStream out) throws ArgumentsParseException, IOException;
+
+    private static boolean isProtobuf(HttpServletRequest req) {
+        String contentType = req.getContentType();
+        return contentType != null && contentType.startsWith(PROTOBUF_CONTENT_TYPE);
+    }
+}
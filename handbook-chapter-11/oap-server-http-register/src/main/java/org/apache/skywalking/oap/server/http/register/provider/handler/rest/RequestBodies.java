@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.apache.skywalking.oap.server.http.register.provider.handler.rest;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the register request bodies, which the agents may send gzipped.
+ *
+ * @author caoyixiong
+ */
+final class RequestBodies {
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+    private static final String GZIP = "gzip";
+
+    private RequestBodies() {
+    }
+
+    static Reader readerOf(HttpServletRequest req) throws IOException {
+        if (isGzipped(req)) {
+            return new BufferedReader(new InputStreamReader(new GZIPInputStream(req.getInputStream()), StandardCharsets.UTF_8));
+        }
+        return req.getReader();
+    }
+
+    static InputStream inputStreamOf(HttpServletRequest req) throws IOException {
+        if (isGzipped(req)) {
+            return new GZIPInputStream(req.getInputStream());
+        }
+        return req.getInputStream();
+    }
+
+    private static boolean isGzipped(HttpServletRequest req) {
+        return GZIP.equalsIgnoreCase(req.getHeader(CONTENT_ENCODING));
+    }
+}
@@ -19,49 +19,59 @@
 package org.apache.skywalking.oap.server.http.register.provider.handler.rest;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import org.apache.skywalking.apm.network.common.Command;
 import org.apache.skywalking.apm.network.common.Commands;
+import org.apache.skywalking.apm.network.register.v2.ServiceInstancePingPkg;
 import org.apache.skywalking.apm.network.trace.component.command.ServiceResetCommand;
+import org.apache.skywalking.oap.server.core.Const;
 import org.apache.skywalking.oap.server.core.CoreModule;
 import org.apache.skywalking.oap.server.core.cache.ServiceInstanceInventoryCache;
 import org.apache.skywalking.oap.server.core.command.CommandService;
 import org.apache.skywalking.oap.server.core.register.ServiceInstanceInventory;
-import org.apache.skywalking.oap.server.core.register.service.IServiceInstanceInventoryRegister;
-import org.apache.skywalking.oap.server.core.register.service.IServiceInventoryRegister;
+import org.apache.skywalking.oap.server.http.register.command.InstanceCommandQueue;
+import org.apache.skywalking.oap.server.http.register.provider.cache.InstanceRegisterCache;
+import org.apache.skywalking.oap.server.http.register.provider.heartbeat.HeartbeatBuffer;
 import org.apache.skywalking.oap.server.library.module.ModuleManager;
 import org.apache.skywalking.oap.server.library.server.jetty.ArgumentsParseException;
-import org.apache.skywalking.oap.server.library.server.jetty.JettyJsonHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
-import java.util.Objects;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 /**
  * @author caoyixiong
  */
-public class ServiceInstancePingServiceHandler extends JettyJsonHandler {
+public class ServiceInstancePingServiceHandler extends RegisterHandler {
 
     private static final Logger logger = LoggerFactory.getLogger(ServiceInstancePingServiceHandler.class);
 
-    private final IServiceInstanceInventoryRegister serviceInstanceInventoryRegister;
+    private final HeartbeatBuffer heartbeatBuffer;
+    private final InstanceCommandQueue commandQueue;
+    private final InstanceRegisterCache registerCache;
     private final ServiceInstanceInventoryCache serviceInstanceInventoryCache;
-    private final IServiceInventoryRegister serviceInventoryRegister;
     private final CommandService commandService;
     private final Gson gson = new Gson();
+    /**
+     * Nearly every ping is answered with no command, which is serialized once.
+     */
+    private final String noCommandsJson = gson.toJson(Commands.getDefaultInstance());
 
     private static final String INSTANCE_ID = "ii";
     private static final String HEARTBEAT_TIME = "ht";
     private static final String INSTANCE_UUID = "iu";
     private static final String INSTANCE_COMMAND = "ic";
 
-    public ServiceInstancePingServiceHandler(ModuleManager moduleManager) {
-        this.serviceInstanceInventoryRegister = moduleManager.find(CoreModule.NAME).provider().getService(IServiceInstanceInventoryRegister.class);
+    public ServiceInstancePingServiceHandler(ModuleManager moduleManager, HeartbeatBuffer heartbeatBuffer,
+        InstanceCommandQueue commandQueue, InstanceRegisterCache registerCache) {
+        super(moduleManager);
+        this.heartbeatBuffer = heartbeatBuffer;
+        this.commandQueue = commandQueue;
+        this.registerCache = registerCache;
         this.serviceInstanceInventoryCache = moduleManager.find(CoreModule.NAME).provider().getService(ServiceInstanceInventoryCache.class);
-        this.serviceInventoryRegister = moduleManager.find(CoreModule.NAME).provider().getService(IServiceInventoryRegister.class);
         this.commandService = moduleManager.find(CoreModule.NAME).provider().getService(CommandService.class);
     }
 
@@ -71,35 +81,73 @@ public class ServiceInstancePingServiceHandler extends JettyJsonHandler {
     }
 
     @Override
-    protected JsonElement doGet(HttpServletRequest req) throws ArgumentsParseException {
-        throw new UnsupportedOperationException();
+    protected void doJsonPost(JsonReader reader, JsonWriter writer) throws ArgumentsParseException, IOException {
+        int instanceId = Const.NONE;
+        long heartBeatTime = 0;
+        String instanceUUID = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case INSTANCE_ID:
+                    instanceId = reader.nextInt();
+                    break;
+                case HEARTBEAT_TIME:
+                    heartBeatTime = reader.nextLong();
+                    break;
+                case INSTANCE_UUID:
+                    instanceUUID = reader.nextString();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (instanceUUID == null) {
+            throw new ArgumentsParseException("service instance uuid is missing");
+        }
+
+        writer.beginObject();
+        writer.name(INSTANCE_COMMAND).value(commandsAsJson(ping(instanceId, heartBeatTime, instanceUUID)));
+        writer.endObject();
     }
 
     @Override
-    protected JsonElement doPost(HttpServletRequest req) throws ArgumentsParseException, IOException {
-        JsonObject responseJson = new JsonObject();
-        try {
-            JsonObject heartBeat = gson.fromJson(req.getReader(), JsonObject.class);
-            int instanceId = heartBeat.get(INSTANCE_ID).getAsInt();
-            long heartBeatTime = heartBeat.get(HEARTBEAT_TIME).getAsLong();
-            String instanceUUID = heartBeat.get(INSTANCE_UUID).getAsString();
-
-            serviceInstanceInventoryRegister.heartbeat(instanceId, heartBeatTime);
-            ServiceInstanceInventory serviceInstanceInventory = serviceInstanceInventoryCache.get(instanceId);
-            if (serviceInstanceInventory != null) {
-                serviceInventoryRegister.heartbeat(serviceInstanceInventory.getServiceId(), heartBeatTime);
-                responseJson.addProperty(INSTANCE_COMMAND, gson.toJson(Commands.getDefaultInstance()));
-            } else {
-                logger.warn("Can't find service by service instance id from cache," +
-                        " service instance id is: {}, will send a reset command to agent side", instanceId);
-                final ServiceResetCommand resetCommand = commandService.newResetCommand(instanceId, heartBeatTime, instanceUUID);
-                final Command command = resetCommand.serialize().build();
-                final Commands nextCommands = Commands.newBuilder().addCommands(command).build();
-                responseJson.addProperty(INSTANCE_COMMAND, gson.toJson(nextCommands));
-            }
-        } catch (IOException e) {
-            logger.error(e.getMessage(), e);
+    protected void doProtobufPost(InputStream body, OutputStream out) throws IOException {
+        ping(ServiceInstancePingPkg.parseFrom(body)).writeTo(out);
+    }
+
+    Commands ping(ServiceInstancePingPkg heartBeat) {
+        return ping(heartBeat.getServiceInstanceId(), heartBeat.getTime(), heartBeat.getServiceInstanceUUID());
+    }
+
+    Commands ping(int instanceId, long heartBeatTime, String instanceUUID) {
+        ServiceInstanceInventory serviceInstanceInventory = serviceInstanceInventoryCache.get(instanceId);
+        if (serviceInstanceInventory != null) {
+            heartbeatBuffer.heartbeat(instanceId, serviceInstanceInventory.getServiceId(), heartBeatTime);
+            return commandQueue.drain(instanceId);
+        } else {
+            return resetCommands(instanceId, heartBeatTime, instanceUUID);
         }
-        return responseJson;
+    }
+
+    /**
+     * The reset command goes through the queue too, so it is answered together with what was pending already.
+     */
+    private Commands resetCommands(int instanceId, long heartBeatTime, String instanceUUID) {
+        logger.warn("Can't find service by service instance id from cache," +
+                " service instance id is: {}, will send a reset command to agent side", instanceId);
+        // the agent registers again with the same uuid, which must not be answered the id unknown here
+        registerCache.invalidate(instanceUUID);
+        final ServiceResetCommand resetCommand = commandService.newResetCommand(instanceId, heartBeatTime, instanceUUID);
+        final Command command = resetCommand.serialize().build();
+        commandQueue.offer(instanceId, command);
+        return commandQueue.drain(instanceId);
+    }
+
+    /**
+     * The commands as the json string the agents read from the {@code ic} field.
+     */
+    String commandsAsJson(Commands commands) {
+        return commands.getCommandsCount() == 0 ? noCommandsJson : gson.toJson(commands);
     }
 }
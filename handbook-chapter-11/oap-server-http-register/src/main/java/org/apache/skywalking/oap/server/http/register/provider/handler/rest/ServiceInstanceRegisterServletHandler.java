@@ -19,26 +19,35 @@
 package org.apache.skywalking.oap.server.http.register.provider.handler.rest;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import org.apache.skywalking.apm.network.common.KeyIntValuePair;
 import org.apache.skywalking.apm.network.common.KeyStringValuePair;
+import org.apache.skywalking.apm.network.register.v2.ServiceInstance;
+import org.apache.skywalking.apm.network.register.v2.ServiceInstanceRegisterMapping;
+import org.apache.skywalking.apm.network.register.v2.ServiceInstances;
 import org.apache.skywalking.oap.server.core.Const;
 import org.apache.skywalking.oap.server.core.CoreModule;
 import org.apache.skywalking.oap.server.core.cache.ServiceInventoryCache;
 import org.apache.skywalking.oap.server.core.register.ServiceInstanceInventory;
 import org.apache.skywalking.oap.server.core.register.ServiceInventory;
 import org.apache.skywalking.oap.server.core.register.service.IServiceInstanceInventoryRegister;
+import org.apache.skywalking.oap.server.http.register.provider.cache.InstanceRegisterCache;
+import org.apache.skywalking.oap.server.http.register.provider.telemetry.RegisterMetrics;
 import org.apache.skywalking.oap.server.library.module.ModuleManager;
 import org.apache.skywalking.oap.server.library.server.jetty.ArgumentsParseException;
-import org.apache.skywalking.oap.server.library.server.jetty.JettyJsonHandler;
+import org.apache.skywalking.oap.server.telemetry.api.HistogramMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import static org.apache.skywalking.oap.server.core.register.ServiceInstanceInventory.PropertyUtil.*;
@@ -46,12 +55,14 @@ import static org.apache.skywalking.oap.server.core.register.ServiceInstanceInve
 /**
  * @author caoyixiong
  */
-public class ServiceInstanceRegisterServletHandler extends JettyJsonHandler {
+public class ServiceInstanceRegisterServletHandler extends RegisterHandler {
 
     private static final Logger logger = LoggerFactory.getLogger(ServiceInstanceRegisterServletHandler.class);
 
     private final IServiceInstanceInventoryRegister serviceInstanceInventoryRegister;
     private final ServiceInventoryCache serviceInventoryCache;
+    private final InstanceRegisterCache registerCache;
+    private final HistogramMetrics inventoryLatency;
     private final Gson gson = new Gson();
 
     private static final String SERVICE_ID = "si";
@@ -59,10 +70,15 @@ public class ServiceInstanceRegisterServletHandler extends JettyJsonHandler {
     private static final String REGISTER_TIME = "rt";
     private static final String INSTANCE_ID = "ii";
     private static final String INSTANCE_PROPERTIES = "ips";
+    private static final Type PROPERTIES_TYPE = new TypeToken<List<KeyStringValuePair>>() {
+    }.getType();
 
-    public ServiceInstanceRegisterServletHandler(ModuleManager moduleManager) {
+    public ServiceInstanceRegisterServletHandler(ModuleManager moduleManager, InstanceRegisterCache registerCache) {
+        super(moduleManager);
+        this.registerCache = registerCache;
         this.serviceInventoryCache = moduleManager.find(CoreModule.NAME).provider().getService(ServiceInventoryCache.class);
         this.serviceInstanceInventoryRegister = moduleManager.find(CoreModule.NAME).provider().getService(IServiceInstanceInventoryRegister.class);
+        this.inventoryLatency = RegisterMetrics.inventoryLatency(moduleManager, "service_instance");
     }
 
     @Override
@@ -71,70 +87,135 @@ public class ServiceInstanceRegisterServletHandler extends JettyJsonHandler {
     }
 
     @Override
-    protected JsonElement doGet(HttpServletRequest req) throws ArgumentsParseException {
-        throw new UnsupportedOperationException();
+    protected void doJsonPost(JsonReader reader, JsonWriter writer) throws ArgumentsParseException, IOException {
+        int elements = 0;
+        reader.beginArray();
+        writer.beginArray();
+        while (reader.hasNext()) {
+            elements++;
+            int serviceId = Const.NONE;
+            String instanceUUID = null;
+            long registerTime = 0;
+            String propertiesJson = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case SERVICE_ID:
+                        serviceId = reader.nextInt();
+                        break;
+                    case INSTANCE_UUID:
+                        instanceUUID = reader.nextString();
+                        break;
+                    case REGISTER_TIME:
+                        registerTime = reader.nextLong();
+                        break;
+                    case INSTANCE_PROPERTIES:
+                        propertiesJson = reader.nextString();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (instanceUUID == null) {
+                throw new ArgumentsParseException("service instance uuid is missing");
+            }
+
+            int serviceInstanceId = register(serviceId, instanceUUID, registerTime, propertiesJson);
+
+            if (serviceInstanceId != Const.NONE) {
+                logger.info("register service instance id={} [UUID:{}]", serviceInstanceId, instanceUUID);
+                writer.beginObject();
+                writer.name(INSTANCE_UUID).value(instanceUUID);
+                writer.name(INSTANCE_ID).value(serviceInstanceId);
+                writer.endObject();
+            }
+        }
+        reader.endArray();
+        writer.endArray();
+        metrics.batch(elements);
     }
 
     @Override
-    protected JsonElement doPost(HttpServletRequest req) throws ArgumentsParseException {
-        JsonArray responseArray = new JsonArray();
-        try {
-            JsonArray instanceList = gson.fromJson(req.getReader(), JsonArray.class);
-            for (int i = 0; i < instanceList.size(); i++) {
-                JsonObject instance = instanceList.get(i).getAsJsonObject();
-                int serviceId = instance.get(SERVICE_ID).getAsInt();
-                String instanceUUID = instance.get(INSTANCE_UUID).getAsString();
-                long registerTime = instance.get(REGISTER_TIME).getAsLong();
-                List<KeyStringValuePair> propertiesList = gson.fromJson(instance.get(INSTANCE_PROPERTIES).getAsString(), new TypeToken<List<KeyStringValuePair>>() {
-                }.getType());
-
-                ServiceInventory serviceInventory = serviceInventoryCache.get(serviceId);
-                JsonObject instanceProperties = new JsonObject();
-                List<String> ipv4s = new ArrayList<>();
-
-                for (KeyStringValuePair property : propertiesList) {
-                    String key = property.getKey();
-                    switch (key) {
-                        case HOST_NAME:
-                            instanceProperties.addProperty(HOST_NAME, property.getValue());
-                            break;
-                        case OS_NAME:
-                            instanceProperties.addProperty(OS_NAME, property.getValue());
-                            break;
-                        case LANGUAGE:
-                            instanceProperties.addProperty(LANGUAGE, property.getValue());
-                            break;
-                        case "ipv4":
-                            ipv4s.add(property.getValue());
-                            break;
-                        case PROCESS_NO:
-                            instanceProperties.addProperty(PROCESS_NO, property.getValue());
-                            break;
-                    }
-                }
-                instanceProperties.addProperty(IPV4S, ServiceInstanceInventory.PropertyUtil.ipv4sSerialize(ipv4s));
+    protected void doProtobufPost(InputStream body, OutputStream out) throws IOException {
+        ServiceInstances instances = ServiceInstances.parseFrom(body);
+        metrics.batch(instances.getInstancesCount());
+        ServiceInstanceRegisterMapping.Builder mapping = ServiceInstanceRegisterMapping.newBuilder();
+        for (ServiceInstance instance : instances.getInstancesList()) {
+            int serviceInstanceId = register(instance.getServiceId(), instance.getInstanceUUID(), instance.getTime(), instance.getPropertiesList());
+
+            if (serviceInstanceId != Const.NONE) {
+                logger.info("register service instance id={} [UUID:{}]", serviceInstanceId, instance.getInstanceUUID());
+                mapping.addServiceInstances(KeyIntValuePair.newBuilder().setKey(instance.getInstanceUUID()).setValue(serviceInstanceId));
+            }
+        }
+        mapping.build().writeTo(out);
+    }
 
-                String instanceName = serviceInventory.getName();
-                if (instanceProperties.has(PROCESS_NO)) {
-                    instanceName += "-pid:" + instanceProperties.get(PROCESS_NO).getAsString();
-                }
-                if (instanceProperties.has(HOST_NAME)) {
-                    instanceName += "@" + instanceProperties.get(HOST_NAME).getAsString();
-                }
+    /**
+     * The properties are parsed only when the instance is registered to the inventory, not for the repeated requests.
+     */
+    private int register(final int serviceId, final String instanceUUID, final long registerTime, final String propertiesJson) {
+        return registerCache.getOrRegister(serviceId, instanceUUID, new InstanceRegisterCache.Registration() {
+            @Override
+            public int register() {
+                List<KeyStringValuePair> propertiesList = propertiesJson == null ? Collections.<KeyStringValuePair>emptyList()
+                    : gson.<List<KeyStringValuePair>>fromJson(propertiesJson, PROPERTIES_TYPE);
+                return registerToInventory(serviceId, instanceUUID, registerTime, propertiesList);
+            }
+        });
+    }
 
-                int serviceInstanceId = serviceInstanceInventoryRegister.getOrCreate(serviceId, instanceName, instanceUUID, registerTime, instanceProperties);
+    private int register(final int serviceId, final String instanceUUID, final long registerTime,
+        final List<KeyStringValuePair> propertiesList) {
+        return registerCache.getOrRegister(serviceId, instanceUUID, new InstanceRegisterCache.Registration() {
+            @Override
+            public int register() {
+                return registerToInventory(serviceId, instanceUUID, registerTime, propertiesList);
+            }
+        });
+    }
 
-                if (serviceInstanceId != Const.NONE) {
-                    logger.info("register service instance id={} [UUID:{}]", serviceInstanceId, instanceUUID);
-                    JsonObject mapping = new JsonObject();
-                    mapping.addProperty(INSTANCE_UUID, instanceUUID);
-                    mapping.addProperty(INSTANCE_ID, serviceInstanceId);
-                    responseArray.add(mapping);
-                }
+    private int registerToInventory(int serviceId, String instanceUUID, long registerTime, List<KeyStringValuePair> propertiesList) {
+        ServiceInventory serviceInventory = serviceInventoryCache.get(serviceId);
+        JsonObject instanceProperties = new JsonObject();
+        List<String> ipv4s = new ArrayList<>();
+
+        for (KeyStringValuePair property : propertiesList) {
+            String key = property.getKey();
+            switch (key) {
+                case HOST_NAME:
+                    instanceProperties.addProperty(HOST_NAME, property.getValue());
+                    break;
+                case OS_NAME:
+                    instanceProperties.addProperty(OS_NAME, property.getValue());
+                    break;
+                case LANGUAGE:
+                    instanceProperties.addProperty(LANGUAGE, property.getValue());
+                    break;
+                case "ipv4":
+                    ipv4s.add(property.getValue());
+                    break;
+                case PROCESS_NO:
+                    instanceProperties.addProperty(PROCESS_NO, property.getValue());
+                    break;
             }
-        } catch (IOException e) {
-            logger.error(e.getMessage(), e);
         }
-        return responseArray;
+        instanceProperties.addProperty(IPV4S, ServiceInstanceInventory.PropertyUtil.ipv4sSerialize(ipv4s));
+
+        String instanceName = serviceInventory.getName();
+        if (instanceProperties.has(PROCESS_NO)) {
+            instanceName += "-pid:" + instanceProperties.get(PROCESS_NO).getAsString();
+        }
+        if (instanceProperties.has(HOST_NAME)) {
+            instanceName += "@" + instanceProperties.get(HOST_NAME).getAsString();
+        }
+
+        HistogramMetrics.Timer timer = inventoryLatency.createTimer();
+        try {
+            return serviceInstanceInventoryRegister.getOrCreate(serviceId, instanceName, instanceUUID, registerTime, instanceProperties);
+        } finally {
+            timer.finish();
+        }
     }
 }
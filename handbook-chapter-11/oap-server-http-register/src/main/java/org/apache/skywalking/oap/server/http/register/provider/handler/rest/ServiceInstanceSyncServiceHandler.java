@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.apache.skywalking.oap.server.http.register.provider.handler.rest;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import org.apache.skywalking.apm.network.common.Commands;
+import org.apache.skywalking.apm.network.register.v2.EndpointMapping;
+import org.apache.skywalking.apm.network.register.v2.Enpoints;
+import org.apache.skywalking.apm.network.register.v2.NetAddressMapping;
+import org.apache.skywalking.apm.network.register.v2.NetAddresses;
+import org.apache.skywalking.apm.network.register.v2.ServiceInstancePingPkg;
+import org.apache.skywalking.oap.server.core.Const;
+import org.apache.skywalking.oap.server.library.module.ModuleManager;
+import org.apache.skywalking.oap.server.library.server.jetty.ArgumentsParseException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The heartbeat of a registered instance together with its endpoints and network addresses to register, so an agent
+ * tick takes one request instead of three.
+ * <p>
+ * The json request is the ping object with the endpoint array and the network address array of the register paths
+ * as two more fields, the response is the ping response with the two mapping arrays added the same way. The protobuf
+ * request is the ping, the endpoints and the network addresses as length delimited messages, answered by the commands,
+ * the endpoint mapping and the network address mapping as length delimited messages.
+ * <p>
+ * The endpoints and network addresses synced are counted in the batches of their own register paths.
+ *
+ * @author caoyixiong
+ */
+public class ServiceInstanceSyncServiceHandler extends RegisterHandler {
+
+    private final ServiceInstancePingServiceHandler pingHandler;
+    private final EndpointRegisterServiceHandler endpointHandler;
+    private final NetworkAddressRegisterServletHandler networkAddressHandler;
+
+    private static final String INSTANCE_ID = "ii";
+    private static final String HEARTBEAT_TIME = "ht";
+    private static final String INSTANCE_UUID = "iu";
+    private static final String INSTANCE_COMMAND = "ic";
+    private static final String ENDPOINTS = "ens";
+    private static final String NETWORK_ADDRESSES = "nds";
+
+    public ServiceInstanceSyncServiceHandler(ModuleManager moduleManager, ServiceInstancePingServiceHandler pingHandler,
+        EndpointRegisterServiceHandler endpointHandler, NetworkAddressRegisterServletHandler networkAddressHandler) {
+        super(moduleManager);
+        this.pingHandler = pingHandler;
+        this.endpointHandler = endpointHandler;
+        this.networkAddressHandler = networkAddressHandler;
+    }
+
+    @Override
+    public String pathSpec() {
+        return "/v6/serviceInstance/sync";
+    }
+
+    @Override
+    protected void doJsonPost(JsonReader reader, JsonWriter writer) throws ArgumentsParseException, IOException {
+        int instanceId = Const.NONE;
+        long heartBeatTime = 0;
+        String instanceUUID = null;
+        reader.beginObject();
+        writer.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case INSTANCE_ID:
+                    instanceId = reader.nextInt();
+                    break;
+                case HEARTBEAT_TIME:
+                    heartBeatTime = reader.nextLong();
+                    break;
+                case INSTANCE_UUID:
+                    instanceUUID = reader.nextString();
+                    break;
+                case ENDPOINTS:
+                    writer.name(ENDPOINTS);
+                    endpointHandler.doJsonPost(reader, writer);
+                    break;
+                case NETWORK_ADDRESSES:
+                    writer.name(NETWORK_ADDRESSES);
+                    networkAddressHandler.doJsonPost(reader, writer);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (instanceUUID == null) {
+            throw new ArgumentsParseException("service instance uuid is missing");
+        }
+
+        writer.name(INSTANCE_COMMAND).value(pingHandler.commandsAsJson(pingHandler.ping(instanceId, heartBeatTime, instanceUUID)));
+        writer.endObject();
+    }
+
+    @Override
+    protected void doProtobufPost(InputStream body, OutputStream out) throws ArgumentsParseException, IOException {
+        ServiceInstancePingPkg heartBeat = ServiceInstancePingPkg.parseDelimitedFrom(body);
+        if (heartBeat == null) {
+            throw new ArgumentsParseException("service instance ping is missing");
+        }
+        Enpoints endpoints = Enpoints.parseDelimitedFrom(body);
+        NetAddresses networkAddresses = NetAddresses.parseDelimitedFrom(body);
+
+        Commands commands = pingHandler.ping(heartBeat);
+        EndpointMapping endpointMapping = endpoints == null ? EndpointMapping.getDefaultInstance() : endpointHandler.register(endpoints);
+        NetAddressMapping addressMapping = networkAddresses == null ? NetAddressMapping.getDefaultInstance() : networkAddressHandler.register(networkAddresses);
+
+        commands.writeDelimitedTo(out);
+        endpointMapping.writeDelimitedTo(out);
+        addressMapping.writeDelimitedTo(out);
+    }
+}
@@ -18,35 +18,36 @@
 
 package org.apache.skywalking.oap.server.http.register.provider.handler.rest;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import org.apache.skywalking.apm.network.common.KeyIntValuePair;
+import org.apache.skywalking.apm.network.register.v2.Service;
+import org.apache.skywalking.apm.network.register.v2.ServiceRegisterMapping;
+import org.apache.skywalking.apm.network.register.v2.Services;
 import org.apache.skywalking.oap.server.core.CoreModule;
 import org.apache.skywalking.oap.server.core.register.service.IServiceInventoryRegister;
+import org.apache.skywalking.oap.server.http.register.provider.telemetry.RegisterMetrics;
 import org.apache.skywalking.oap.server.library.module.ModuleManager;
-import org.apache.skywalking.oap.server.library.server.jetty.ArgumentsParseException;
-import org.apache.skywalking.oap.server.library.server.jetty.JettyJsonHandler;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.apache.skywalking.oap.server.telemetry.api.HistogramMetrics;
 
-import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 /**
  * @author caoyixiong
  */
-public class ServiceRegisterServletHandler extends JettyJsonHandler {
-
-    private static final Logger logger = LoggerFactory.getLogger(ServiceRegisterServletHandler.class);
+public class ServiceRegisterServletHandler extends RegisterHandler {
 
     private final IServiceInventoryRegister serviceInventoryRegister;
-    private Gson gson = new Gson();
+    private final HistogramMetrics inventoryLatency;
     private static final String SERVICE_NAME = "sn";
     private static final String SERVICE_ID = "si";
 
     public ServiceRegisterServletHandler(ModuleManager moduleManager) {
+        super(moduleManager);
         serviceInventoryRegister = moduleManager.find(CoreModule.NAME).provider().getService(IServiceInventoryRegister.class);
+        inventoryLatency = RegisterMetrics.inventoryLatency(moduleManager, "service");
     }
 
     @Override
@@ -55,26 +56,42 @@ public class ServiceRegisterServletHandler extends JettyJsonHandler {
     }
 
     @Override
-    protected JsonElement doGet(HttpServletRequest req) throws ArgumentsParseException {
-        throw new UnsupportedOperationException();
+    protected void doJsonPost(JsonReader reader, JsonWriter writer) throws IOException {
+        int elements = 0;
+        reader.beginArray();
+        writer.beginArray();
+        while (reader.hasNext()) {
+            elements++;
+            String serviceName = reader.nextString();
+            int serviceId = register(serviceName);
+            writer.beginObject();
+            writer.name(SERVICE_NAME).value(serviceName);
+            writer.name(SERVICE_ID).value(serviceId);
+            writer.endObject();
+        }
+        reader.endArray();
+        writer.endArray();
+        metrics.batch(elements);
     }
 
     @Override
-    protected JsonElement doPost(HttpServletRequest req) throws ArgumentsParseException {
-        JsonArray responseArray = new JsonArray();
+    protected void doProtobufPost(InputStream body, OutputStream out) throws IOException {
+        Services services = Services.parseFrom(body);
+        metrics.batch(services.getServicesCount());
+        ServiceRegisterMapping.Builder mapping = ServiceRegisterMapping.newBuilder();
+        for (Service service : services.getServicesList()) {
+            int serviceId = register(service.getServiceName());
+            mapping.addServices(KeyIntValuePair.newBuilder().setKey(service.getServiceName()).setValue(serviceId));
+        }
+        mapping.build().writeTo(out);
+    }
+
+    private int register(String serviceName) {
+        HistogramMetrics.Timer timer = inventoryLatency.createTimer();
         try {
-            JsonArray serviceNames = gson.fromJson(req.getReader(), JsonArray.class);
-            for (int i = 0; i < serviceNames.size(); i++) {
-                String serviceName = serviceNames.get(i).getAsString();
-                int serviceId = serviceInventoryRegister.getOrCreate(serviceName, null);
-                JsonObject mapping = new JsonObject();
-                mapping.addProperty(SERVICE_NAME, serviceName);
-                mapping.addProperty(SERVICE_ID, serviceId);
-                responseArray.add(mapping);
-            }
-        } catch (IOException e) {
-            logger.error(e.getMessage(), e);
+            return serviceInventoryRegister.getOrCreate(serviceName, null);
+        } finally {
+            timer.finish();
         }
-        return responseArray;
     }
 }
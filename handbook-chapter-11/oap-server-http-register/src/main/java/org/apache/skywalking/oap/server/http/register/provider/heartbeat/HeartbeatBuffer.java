@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.apache.skywalking.oap.server.http.register.provider.heartbeat;
+
+import org.apache.skywalking.apm.util.RunnableWithExceptionProtection;
+import org.apache.skywalking.oap.server.core.CoreModule;
+import org.apache.skywalking.oap.server.core.register.service.IServiceInstanceInventoryRegister;
+import org.apache.skywalking.oap.server.core.register.service.IServiceInventoryRegister;
+import org.apache.skywalking.oap.server.http.register.provider.telemetry.RegisterMetrics;
+import org.apache.skywalking.oap.server.library.module.ModuleManager;
+import org.apache.skywalking.oap.server.telemetry.api.HistogramMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the latest heartbeat time of every service instance and service pinging between two flushes, and passes only
+ * those to the core inventory on every flush. A ping is then an in-memory update, and the heartbeats reaching the
+ * storage no longer grow with how often the agents ping.
+ * <p>
+ * The pings fill one pair of maps while the flush thread drains the other, so a flush holds the lock only to swap
+ * them.
+ *
+ * @author caoyixiong
+ */
+public class HeartbeatBuffer {
+    private static final Logger logger = LoggerFactory.getLogger(HeartbeatBuffer.class);
+
+    private final IServiceInstanceInventoryRegister serviceInstanceInventoryRegister;
+    private final IServiceInventoryRegister serviceInventoryRegister;
+    private final long flushInterval;
+    private final HistogramMetrics inventoryLatency;
+
+    private IntLongMap instances = new IntLongMap(1024);
+    private IntLongMap services = new IntLongMap(64);
+    private IntLongMap flushingInstances = new IntLongMap(1024);
+    private IntLongMap flushingServices = new IntLongMap(64);
+
+    /**
+     * @param flushInterval unit is ms, 0 or less passes every heartbeat to the core inventory at once.
+     */
+    public HeartbeatBuffer(ModuleManager moduleManager, long flushInterval) {
+        this.serviceInstanceInventoryRegister = moduleManager.find(CoreModule.NAME).provider().getService(IServiceInstanceInventoryRegister.class);
+        this.serviceInventoryRegister = moduleManager.find(CoreModule.NAME).provider().getService(IServiceInventoryRegister.class);
+        this.flushInterval = flushInterval;
+        this.inventoryLatency = RegisterMetrics.inventoryLatency(moduleManager, "heartbeat");
+    }
+
+    public void start() {
+        if (flushInterval <= 0) {
+            return;
+        }
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "HttpRegister-heartbeat-flush");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }).scheduleWithFixedDelay(
+            new RunnableWithExceptionProtection(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, new RunnableWithExceptionProtection.CallbackWhenException() {
+                @Override
+                public void handle(Throwable t) {
+                    logger.error("flush heartbeats failure.", t);
+                }
+            }), flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public void heartbeat(int serviceInstanceId, int serviceId, long heartBeatTime) {
+        if (flushInterval <= 0) {
+            HistogramMetrics.Timer timer = inventoryLatency.createTimer();
+            try {
+                serviceInstanceInventoryRegister.heartbeat(serviceInstanceId, heartBeatTime);
+                serviceInventoryRegister.heartbeat(serviceId, heartBeatTime);
+            } finally {
+                timer.finish();
+            }
+            return;
+        }
+        synchronized (this) {
+            instances.putMax(serviceInstanceId, heartBeatTime);
+            services.putMax(serviceId, heartBeatTime);
+        }
+    }
+
+    void flush() {
+        IntLongMap instancesToFlush;
+        IntLongMap servicesToFlush;
+        synchronized (this) {
+            instancesToFlush = instances;
+            servicesToFlush = services;
+            instances = flushingInstances;
+            services = flushingServices;
+        }
+        HistogramMetrics.Timer timer = inventoryLatency.createTimer();
+        try {
+            instancesToFlush.forEach(new IntLongMap.Consumer() {
+                @Override
+                public void accept(int serviceInstanceId, long heartBeatTime) {
+                    // one failing heartbeat doesn't drop the others of this flush
+                    try {
+                        serviceInstanceInventoryRegister.heartbeat(serviceInstanceId, heartBeatTime);
+                    } catch (RuntimeException e) {
+                        logger.error("flush the heartbeat of service instance {} failure", serviceInstanceId, e);
+                    }
+                }
+            });
+            servicesToFlush.forEach(new IntLongMap.Consumer() {
+                @Override
+                public void accept(int serviceId, long heartBeatTime) {
+                    try {
+                        serviceInventoryRegister.heartbeat(serviceId, heartBeatTime);
+                    } catch (RuntimeException e) {
+                        logger.error("flush the heartbeat of service {} failure", serviceId, e);
+                    }
+                }
+            });
+            if (logger.isDebugEnabled()) {
+                logger.debug("flushed the heartbeats of {} service instances and {} services", instancesToFlush.size(), servicesToFlush.size());
+            }
+        } finally {
+            timer.finish();
+            instancesToFlush.clear();
+            servicesToFlush.clear();
+            flushingInstances = instancesToFlush;
+            flushingServices = servicesToFlush;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.apache.skywalking.oap.server.http.register.provider.heartbeat;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing map of int ids to the latest long time put for them, without boxing. Id 0 is the empty slot, it
+ * is never an inventory sequence. Not thread safe.
+ *
+ * @author caoyixiong
+ */
+class IntLongMap {
+    private int[] keys;
+    private long[] values;
+    private int mask;
+    private int size;
+
+    IntLongMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2 && capacity < (1 << 29)) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * Keep the given value for the key unless a later one is kept already.
+     */
+    void putMax(int key, long value) {
+        int index = indexOf(key);
+        while (true) {
+            int existing = keys[index];
+            if (existing == key) {
+                if (values[index] < value) {
+                    values[index] = value;
+                }
+                return;
+            }
+            if (existing == 0) {
+                keys[index] = key;
+                values[index] = value;
+                if (++size * 2 > keys.length) {
+                    grow();
+                }
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    void forEach(Consumer consumer) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                consumer.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    void clear() {
+        if (size > 0) {
+            Arrays.fill(keys, 0);
+            size = 0;
+        }
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        long[] oldValues = values;
+        allocate(keys.length << 1);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                putMax(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    private int indexOf(int key) {
+        int hash = key * 0x9e3779b9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    interface Consumer {
+        void accept(int key, long value);
+    }
+}
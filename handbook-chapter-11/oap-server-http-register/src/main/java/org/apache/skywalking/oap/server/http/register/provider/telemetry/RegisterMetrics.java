@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.apache.skywalking.oap.server.http.register.provider.telemetry;
+
+import org.apache.skywalking.oap.server.library.module.ModuleManager;
+import org.apache.skywalking.oap.server.telemetry.TelemetryModule;
+import org.apache.skywalking.oap.server.telemetry.api.CounterMetrics;
+import org.apache.skywalking.oap.server.telemetry.api.HistogramMetrics;
+import org.apache.skywalking.oap.server.telemetry.api.MetricsCreator;
+import org.apache.skywalking.oap.server.telemetry.api.MetricsTag;
+
+/**
+ * The self-observability metrics of one register path: the latency of its requests, the elements in their batches
+ * and the requests failed. The calls into the core inventory are timed by type, shared by all the paths.
+ *
+ * @author caoyixiong
+ */
+public class RegisterMetrics {
+    private static final double[] BATCH_SIZE_BUCKETS = {1, 5, 10, 50, 100, 500, 1000, 5000};
+
+    private final HistogramMetrics latency;
+    private final HistogramMetrics batchSize;
+    private final CounterMetrics errors;
+
+    public RegisterMetrics(ModuleManager moduleManager, String path) {
+        MetricsCreator metricsCreator = metricsCreatorOf(moduleManager);
+        MetricsTag.Keys pathKey = new MetricsTag.Keys("path");
+        MetricsTag.Values pathValue = new MetricsTag.Values(path);
+        this.latency = metricsCreator.createHistogramMetric("http_register_in_latency", "The process latency of http register requests", pathKey, pathValue);
+        this.batchSize = metricsCreator.createHistogramMetric("http_register_batch_size", "The elements in one http register request", pathKey, pathValue, BATCH_SIZE_BUCKETS);
+        this.errors = metricsCreator.createCounter("http_register_error_count", "The http register requests failed", pathKey, pathValue);
+    }
+
+    public HistogramMetrics.Timer startRequest() {
+        return latency.createTimer();
+    }
+
+    public void batch(int elements) {
+        batchSize.observe(elements);
+    }
+
+    public void error() {
+        errors.inc();
+    }
+
+    /**
+     * @param type of what the inventory registers, one of service, service_instance, endpoint, network_address and
+     * heartbeat.
+     */
+    public static HistogramMetrics inventoryLatency(ModuleManager moduleManager, String type) {
+        return metricsCreatorOf(moduleManager).createHistogramMetric("http_register_inventory_latency", "The latency of the core inventory calls of http register",
+            new MetricsTag.Keys("type"), new MetricsTag.Values(type));
+    }
+
+    private static MetricsCreator metricsCreatorOf(ModuleManager moduleManager) {
+        return moduleManager.find(TelemetryModule.NAME).provider().getService(MetricsCreator.class);
+    }
+}
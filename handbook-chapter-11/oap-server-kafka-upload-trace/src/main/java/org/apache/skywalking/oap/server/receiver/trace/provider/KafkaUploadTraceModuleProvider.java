@@ -33,6 +33,7 @@ public class KafkaUploadTraceModuleProvider extends TraceModuleProvider {
     private SegmentParseV2.Producer segmentProducerV2;
     private DBLatencyThresholdsAndWatcher thresholds;
     private UninstrumentedGatewaysConfig uninstrumentedGatewaysConfig;
+    private KafkaServer kafkaServer;
 
     public KafkaUploadTraceModuleProvider() {
         this.moduleConfig = new KafkaUploadTraceServiceModuleConfig();
@@ -93,10 +94,17 @@ public class KafkaUploadTraceModuleProvider extends TraceModuleProvider {
             SegmentStandardizationWorker standardizationWorkerV2 = new SegmentStandardizationWorker(getManager(), segmentProducerV2, moduleConfig.getBufferPath(), moduleConfig.getBufferOffsetMaxFileSize(), moduleConfig.getBufferDataMaxFileSize(), moduleConfig.isBufferFileCleanWhenRestart(), true);
             segmentProducerV2.setStandardizationWorker(standardizationWorkerV2);
 
-            KafkaServer kafkaServer = new KafkaServer(moduleConfig.getKafkaBrokers(), moduleConfig.getTopic());
+            kafkaServer = new KafkaServer(moduleConfig.getKafkaBrokers(), moduleConfig.getTopic(), moduleConfig.getConsumers(),
+                moduleConfig.getDecodeThreads(), moduleConfig.getDispatchThreads(), moduleConfig.getMaxInFlightDataSize() * 1024L * 1024L,
+                moduleConfig.getCommitBatchSize(), moduleConfig.getCommitInterval());
             TraceSegmentReportKafkaServiceHandler handler = new TraceSegmentReportKafkaServiceHandler(segmentProducerV2, getManager());
             kafkaServer.addHandler(handler);
             kafkaServer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override public void run() {
+                    kafkaServer.shutdown();
+                }
+            }, "KafkaServer-shutdown"));
         } catch (IOException e) {
             throw new ModuleStartException(e.getMessage(), e);
         }
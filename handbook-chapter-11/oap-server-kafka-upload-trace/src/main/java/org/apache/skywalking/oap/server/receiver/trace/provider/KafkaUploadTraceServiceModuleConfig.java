@@ -9,6 +9,37 @@ class KafkaUploadTraceServiceModuleConfig extends TraceServiceModuleConfig {
 
     private String topic;
 
+    /**
+     * Number of consumer threads, each one owns a consumer of the same group.
+     */
+    private int consumers = 1;
+
+    /**
+     * Threads parsing the polled records.
+     */
+    private int decodeThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Threads sending the parsed segments to the segment parser.
+     */
+    private int dispatchThreads = 2;
+
+    /**
+     * Polled but not yet dispatched data, the consumers pause their partitions beyond it. Unit is MB.
+     */
+    private int maxInFlightDataSize = 64;
+
+    /**
+     * Offsets of the dispatched records are committed once this many records completed, or once {@link
+     * #commitInterval} elapsed.
+     */
+    private int commitBatchSize = 1000;
+
+    /**
+     * Unit is ms.
+     */
+    private long commitInterval = 1000;
+
     public String getKafkaBrokers() {
         return kafkaBrokers;
     }
@@ -24,4 +55,52 @@ class KafkaUploadTraceServiceModuleConfig extends TraceServiceModuleConfig {
     public void setTopic(String topic) {
         this.topic = topic;
     }
+
+    public int getConsumers() {
+        return consumers;
+    }
+
+    public void setConsumers(int consumers) {
+        this.consumers = consumers;
+    }
+
+    public int getDecodeThreads() {
+        return decodeThreads;
+    }
+
+    public void setDecodeThreads(int decodeThreads) {
+        this.decodeThreads = decodeThreads;
+    }
+
+    public int getDispatchThreads() {
+        return dispatchThreads;
+    }
+
+    public void setDispatchThreads(int dispatchThreads) {
+        this.dispatchThreads = dispatchThreads;
+    }
+
+    public int getMaxInFlightDataSize() {
+        return maxInFlightDataSize;
+    }
+
+    public void setMaxInFlightDataSize(int maxInFlightDataSize) {
+        this.maxInFlightDataSize = maxInFlightDataSize;
+    }
+
+    public int getCommitBatchSize() {
+        return commitBatchSize;
+    }
+
+    public void setCommitBatchSize(int commitBatchSize) {
+        this.commitBatchSize = commitBatchSize;
+    }
+
+    public long getCommitInterval() {
+        return commitInterval;
+    }
+
+    public void setCommitInterval(long commitInterval) {
+        this.commitInterval = commitInterval;
+    }
 }
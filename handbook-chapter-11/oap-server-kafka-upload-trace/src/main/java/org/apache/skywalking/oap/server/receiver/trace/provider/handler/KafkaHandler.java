@@ -1,10 +1,18 @@
 package org.apache.skywalking.oap.server.receiver.trace.provider.handler;
 
-import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
 
 /**
+ * A handler is driven in two stages, {@link #decode(ConsumerRecord)} runs on the decode pool and {@link
+ * #dispatch(Object)} runs on the dispatch pool, neither of them runs on the poll thread.
+ *
  * @author caoyixiong
  */
-public interface KafkaHandler {
-    void doConsumer(ConsumerRecords<String, byte[]> records);
+public interface KafkaHandler<T> {
+    /**
+     * @return the decoded data, or null if nothing should be dispatched
+     */
+    T decode(ConsumerRecord<String, byte[]> record) throws Exception;
+
+    void dispatch(T data);
 }
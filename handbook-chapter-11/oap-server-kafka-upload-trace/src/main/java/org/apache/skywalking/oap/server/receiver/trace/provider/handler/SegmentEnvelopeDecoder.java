@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.apache.skywalking.oap.server.receiver.trace.provider.handler;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.apache.skywalking.apm.network.language.agent.UpstreamSegment;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Decodes the record values written by the agent, either one {@link UpstreamSegment} or an envelope of them:
+ * <pre>
+ * | magic 0x00 | version | varint size | segment | varint size | segment | ...
+ * </pre>
+ *
+ * @author caoyixiong
+ */
+class SegmentEnvelopeDecoder {
+    static final byte MAGIC = 0x00;
+    static final byte VERSION = 0x01;
+    private static final int HEADER_SIZE = 2;
+
+    static List<UpstreamSegment> decode(byte[] value) throws IOException {
+        if (value == null || value.length == 0) {
+            return Collections.emptyList();
+        }
+        if (value[0] != MAGIC) {
+            return Collections.singletonList(UpstreamSegment.parseFrom(value));
+        }
+        if (value.length < HEADER_SIZE || value[1] != VERSION) {
+            throw new InvalidProtocolBufferException("unsupported segment envelope version");
+        }
+
+        List<UpstreamSegment> segments = new ArrayList<>();
+        CodedInputStream input = CodedInputStream.newInstance(value, HEADER_SIZE, value.length - HEADER_SIZE);
+        while (!input.isAtEnd()) {
+            int size = input.readRawVarint32();
+            int oldLimit = input.pushLimit(size);
+            segments.add(UpstreamSegment.parseFrom(input));
+            input.popLimit(oldLimit);
+        }
+        return segments;
+    }
+}
@@ -18,9 +18,7 @@
 
 package org.apache.skywalking.oap.server.receiver.trace.provider.handler;
 
-import com.google.protobuf.InvalidProtocolBufferException;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
-import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.skywalking.apm.network.language.agent.UpstreamSegment;
 import org.apache.skywalking.oap.server.library.module.ModuleManager;
 import org.apache.skywalking.oap.server.receiver.trace.provider.parser.SegmentParseV2;
@@ -29,15 +27,14 @@ import org.apache.skywalking.oap.server.telemetry.TelemetryModule;
 import org.apache.skywalking.oap.server.telemetry.api.HistogramMetrics;
 import org.apache.skywalking.oap.server.telemetry.api.MetricsCreator;
 import org.apache.skywalking.oap.server.telemetry.api.MetricsTag;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
 
 /**
  * @author caoyixiong
  */
-public class TraceSegmentReportKafkaServiceHandler implements KafkaHandler {
-
-    private static final Logger logger = LoggerFactory.getLogger(TraceSegmentReportKafkaServiceHandler.class);
+public class TraceSegmentReportKafkaServiceHandler implements KafkaHandler<List<UpstreamSegment>> {
 
     private final SegmentParseV2.Producer segmentProducer;
     private HistogramMetrics histogram;
@@ -49,14 +46,20 @@ public class TraceSegmentReportKafkaServiceHandler implements KafkaHandler {
                 MetricsTag.EMPTY_KEY, MetricsTag.EMPTY_VALUE);
     }
 
+    /**
+     * Accepts both the legacy one-segment records and the envelope records packing a batch of segments.
+     */
+    @Override
+    public List<UpstreamSegment> decode(ConsumerRecord<String, byte[]> record) throws IOException {
+        return SegmentEnvelopeDecoder.decode(record.value());
+    }
+
     @Override
-    public void doConsumer(ConsumerRecords<String, byte[]> records) {
-        for (ConsumerRecord<String, byte[]> record : records) {
+    public void dispatch(List<UpstreamSegment> segments) {
+        for (UpstreamSegment segment : segments) {
             HistogramMetrics.Timer timer = histogram.createTimer();
             try {
-                segmentProducer.send(UpstreamSegment.parseFrom(record.value()), SegmentSource.Agent);
-            } catch (InvalidProtocolBufferException e) {
-                logger.error(e.getMessage(), e);
+                segmentProducer.send(segment, SegmentSource.Agent);
             } finally {
                 timer.finish();
             }
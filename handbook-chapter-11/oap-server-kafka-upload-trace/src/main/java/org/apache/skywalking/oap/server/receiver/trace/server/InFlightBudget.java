@@ -0,0 +1,41 @@
+package org.apache.skywalking.oap.server.receiver.trace.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bytes of records which have been polled but not dispatched yet, shared by all the consumers of one {@link
+ * KafkaServer}. Consumers pause their partitions once the budget is exhausted and resume them after the in-flight
+ * bytes drained below half of it.
+ *
+ * @author caoyixiong
+ */
+class InFlightBudget {
+    private final long maxBytes;
+    private final long resumeBytes;
+    private final AtomicLong inFlightBytes = new AtomicLong(0);
+
+    InFlightBudget(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.resumeBytes = maxBytes / 2;
+    }
+
+    void acquire(long bytes) {
+        inFlightBytes.addAndGet(bytes);
+    }
+
+    void release(long bytes) {
+        inFlightBytes.addAndGet(-bytes);
+    }
+
+    boolean isExhausted() {
+        return inFlightBytes.get() >= maxBytes;
+    }
+
+    boolean isDrained() {
+        return inFlightBytes.get() <= resumeBytes;
+    }
+
+    long inFlightBytes() {
+        return inFlightBytes.get();
+    }
+}
@@ -0,0 +1,98 @@
+package org.apache.skywalking.oap.server.receiver.trace.server;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Poll loop of one pooled consumer. The {@link Consumer} is owned by the thread running this worker, {@link
+ * #shutdown()} is the only method called from other threads.
+ *
+ * @author caoyixiong
+ */
+class KafkaConsumerWorker implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(KafkaConsumerWorker.class);
+
+    private final Consumer<String, byte[]> consumer;
+    private final String topic;
+    private final KafkaPipeline pipeline;
+    private final InFlightBudget budget;
+    private final OffsetCommitCoordinator coordinator;
+    private final long closeTimeout;
+    private volatile boolean running = true;
+    private boolean paused = false;
+
+    KafkaConsumerWorker(Consumer<String, byte[]> consumer, String topic, KafkaPipeline pipeline,
+        InFlightBudget budget, int commitBatchSize, long commitInterval, long closeTimeout) {
+        this.consumer = consumer;
+        this.topic = topic;
+        this.pipeline = pipeline;
+        this.budget = budget;
+        this.coordinator = new OffsetCommitCoordinator(consumer, commitBatchSize, commitInterval);
+        this.closeTimeout = closeTimeout;
+    }
+
+    @Override
+    public void run() {
+        try {
+            consumer.subscribe(Collections.singletonList(topic), coordinator);
+            while (running) {
+                coordinator.maybeCommit();
+                applyBackpressure();
+                ConsumerRecords<String, byte[]> records = consumer.poll(1000);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("获取的kafka消息： " + records.count());
+                }
+                for (TopicPartition partition : records.partitions()) {
+                    for (ConsumerRecord<String, byte[]> record : records.records(partition)) {
+                        pipeline.submit(record, coordinator, coordinator.track(partition, record.offset()));
+                    }
+                }
+            }
+        } catch (WakeupException e) {
+            if (running) {
+                logger.error(e.getMessage(), e);
+            }
+        } catch (Throwable t) {
+            logger.error("kafka consumer stopped by unexpected exception", t);
+        } finally {
+            try {
+                coordinator.commitOnClose(closeTimeout);
+            } finally {
+                consumer.close();
+            }
+        }
+    }
+
+    /**
+     * Partitions assigned by a rebalance come in resumed, so they are paused again as long as the budget is
+     * exhausted.
+     */
+    private void applyBackpressure() {
+        if (budget.isExhausted()) {
+            Set<TopicPartition> assignment = consumer.assignment();
+            if (!paused) {
+                logger.warn("kafka in-flight data reached {} bytes, pause partitions {}", budget.inFlightBytes(), assignment);
+            }
+            consumer.pause(assignment);
+            paused = true;
+        } else if (paused && budget.isDrained()) {
+            Set<TopicPartition> pausedPartitions = consumer.paused();
+            consumer.resume(pausedPartitions);
+            paused = false;
+            logger.info("kafka in-flight data drained to {} bytes, resume partitions {}", budget.inFlightBytes(), pausedPartitions);
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        consumer.wakeup();
+    }
+}
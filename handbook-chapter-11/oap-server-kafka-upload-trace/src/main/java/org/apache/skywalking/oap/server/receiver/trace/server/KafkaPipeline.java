@@ -0,0 +1,155 @@
+package org.apache.skywalking.oap.server.receiver.trace.server;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.skywalking.oap.server.receiver.trace.provider.handler.KafkaHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves polled records through the decode pool and then the dispatch pool, keeping the bytes of every record in the
+ * {@link InFlightBudget} until all the handlers have dispatched it. A record which failed to decode or dispatch still
+ * completes, it is logged and never retried, so it doesn't block the offset commit of its partition.
+ *
+ * @author caoyixiong
+ */
+class KafkaPipeline {
+    private static final Logger logger = LoggerFactory.getLogger(KafkaPipeline.class);
+
+    private final List<KafkaHandler<?>> kafkaHandlers;
+    private final InFlightBudget budget;
+    private final ExecutorService decodeExecutor;
+    private final ExecutorService dispatchExecutor;
+
+    KafkaPipeline(List<KafkaHandler<?>> kafkaHandlers, InFlightBudget budget, int decodeThreads,
+        int dispatchThreads) {
+        this.kafkaHandlers = kafkaHandlers;
+        this.budget = budget;
+        this.decodeExecutor = Executors.newFixedThreadPool(Math.max(1, decodeThreads), new NamedThreadFactory("KafkaServer-decode"));
+        this.dispatchExecutor = Executors.newFixedThreadPool(Math.max(1, dispatchThreads), new NamedThreadFactory("KafkaServer-dispatch"));
+    }
+
+    void submit(ConsumerRecord<String, byte[]> record, OffsetCommitCoordinator coordinator,
+        PartitionOffsets offsets) {
+        budget.acquire(sizeOf(record));
+        decodeExecutor.execute(new DecodeTask(new PolledRecord(record, coordinator, offsets)));
+    }
+
+    /**
+     * Drain the queued records, the consumers must have been stopped before, otherwise they keep feeding the decode
+     * pool.
+     */
+    void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        decodeExecutor.shutdown();
+        if (!decodeExecutor.awaitTermination(timeout, unit)) {
+            logger.warn("kafka decode pool didn't stop in time, {} bytes in flight", budget.inFlightBytes());
+            decodeExecutor.shutdownNow();
+        }
+        dispatchExecutor.shutdown();
+        if (!dispatchExecutor.awaitTermination(timeout, unit)) {
+            logger.warn("kafka dispatch pool didn't stop in time, {} bytes in flight", budget.inFlightBytes());
+            dispatchExecutor.shutdownNow();
+        }
+    }
+
+    private void complete(PolledRecord polled) {
+        budget.release(sizeOf(polled.record));
+        polled.coordinator.complete(polled.offsets, polled.record.offset());
+    }
+
+    private static int sizeOf(ConsumerRecord<String, byte[]> record) {
+        return record.value() == null ? 0 : record.value().length;
+    }
+
+    private static class PolledRecord {
+        private final ConsumerRecord<String, byte[]> record;
+        private final OffsetCommitCoordinator coordinator;
+        private final PartitionOffsets offsets;
+
+        private PolledRecord(ConsumerRecord<String, byte[]> record, OffsetCommitCoordinator coordinator,
+            PartitionOffsets offsets) {
+            this.record = record;
+            this.coordinator = coordinator;
+            this.offsets = offsets;
+        }
+    }
+
+    private class DecodeTask implements Runnable {
+        private final PolledRecord polled;
+
+        private DecodeTask(PolledRecord polled) {
+            this.polled = polled;
+        }
+
+        @Override
+        public void run() {
+            ConsumerRecord<String, byte[]> record = polled.record;
+            List<Decoded<?>> decodedList = new ArrayList<>(kafkaHandlers.size());
+            for (KafkaHandler<?> kafkaHandler : kafkaHandlers) {
+                try {
+                    Decoded<?> decoded = Decoded.of(kafkaHandler, record);
+                    if (decoded != null) {
+                        decodedList.add(decoded);
+                    }
+                } catch (Throwable t) {
+                    logger.error("decode kafka record failure, partition: " + record.partition() + ", offset: " + record.offset(), t);
+                }
+            }
+            if (decodedList.isEmpty()) {
+                complete(polled);
+            } else {
+                dispatchExecutor.execute(new DispatchTask(polled, decodedList));
+            }
+        }
+    }
+
+    private class DispatchTask implements Runnable {
+        private final PolledRecord polled;
+        private final List<Decoded<?>> decodedList;
+
+        private DispatchTask(PolledRecord polled, List<Decoded<?>> decodedList) {
+            this.polled = polled;
+            this.decodedList = decodedList;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (Decoded<?> decoded : decodedList) {
+                    try {
+                        decoded.dispatch();
+                    } catch (Throwable t) {
+                        logger.error(t.getMessage(), t);
+                    }
+                }
+            } finally {
+                complete(polled);
+            }
+        }
+    }
+
+    private static class Decoded<T> {
+        private final KafkaHandler<T> kafkaHandler;
+        private final T data;
+
+        private Decoded(KafkaHandler<T> kafkaHandler, T data) {
+            this.kafkaHandler = kafkaHandler;
+            this.data = data;
+        }
+
+        private static <T> Decoded<T> of(KafkaHandler<T> kafkaHandler,
+            ConsumerRecord<String, byte[]> record) throws Exception {
+            T data = kafkaHandler.decode(record);
+            return data == null ? null : new Decoded<T>(kafkaHandler, data);
+        }
+
+        private void dispatch() {
+            kafkaHandler.dispatch(data);
+        }
+    }
+}
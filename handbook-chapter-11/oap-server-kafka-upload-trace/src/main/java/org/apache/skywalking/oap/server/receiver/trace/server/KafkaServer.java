@@ -1,65 +1,115 @@
 package org.apache.skywalking.oap.server.receiver.trace.server;
 
 import org.apache.kafka.clients.consumer.Consumer;
-import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
 import org.apache.skywalking.oap.server.receiver.trace.provider.handler.KafkaHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Runs a pool of consumers sharing one group, one {@link KafkaConsumer} per thread, so the topic partitions are
+ * spread over all the threads of this OAP node.
+ * <p>
+ * The consumer threads only poll, the records are decoded and dispatched by the {@link KafkaPipeline}. When the
+ * polled but not yet dispatched bytes exceed the in-flight budget, the consumers pause their partitions and keep on
+ * polling, so the group membership stays alive until the pipeline drained.
+ * <p>
+ * Offsets are committed by an {@link OffsetCommitCoordinator} per consumer, only once the records are dispatched.
+ *
  * @author caoyixiong
  */
 public class KafkaServer {
     private static final Logger logger = LoggerFactory.getLogger(KafkaServer.class);
 
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
     private final String brokers;
     private final String topic;
-    private CopyOnWriteArrayList<KafkaHandler> kafkaHandlers = new CopyOnWriteArrayList<>();
+    private final int consumers;
+    private final int decodeThreads;
+    private final int dispatchThreads;
+    private final InFlightBudget budget;
+    private final int commitBatchSize;
+    private final long commitInterval;
+    private CopyOnWriteArrayList<KafkaHandler<?>> kafkaHandlers = new CopyOnWriteArrayList<>();
 
-    private Consumer<String, byte[]> consumer;
+    private final List<KafkaConsumerWorker> workers = new ArrayList<>();
+    private ExecutorService executor;
+    private KafkaPipeline pipeline;
 
-    public KafkaServer(String brokers, String topic) {
+    public KafkaServer(String brokers, String topic, int consumers, int decodeThreads, int dispatchThreads,
+        long maxInFlightBytes, int commitBatchSize, long commitInterval) {
         this.brokers = brokers;
         this.topic = topic;
-        initialize();
+        this.consumers = Math.max(1, consumers);
+        this.decodeThreads = decodeThreads;
+        this.dispatchThreads = dispatchThreads;
+        this.budget = new InFlightBudget(maxInFlightBytes);
+        this.commitBatchSize = commitBatchSize;
+        this.commitInterval = commitInterval;
     }
 
-    public void addHandler(KafkaHandler kafkaHandler) {
+    public void addHandler(KafkaHandler<?> kafkaHandler) {
         kafkaHandlers.add(kafkaHandler);
     }
 
-    private void initialize() {
+    private Consumer<String, byte[]> createConsumer() {
         Properties props = new Properties();
         props.put("bootstrap.servers", brokers);
         props.put("group.id", "sw_group");
-        props.put("enable.auto.commit", "true");
-        props.put("auto.commit.interval.ms", 1000);
+        props.put("enable.auto.commit", "false");
         props.put("session.timeout.ms", 120000);
         props.put("max.poll.interval.ms", 600000);
         props.put("max.poll.records", 100);
         props.put("key.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
         props.put("value.deserializer", "org.apache.kafka.common.serialization.ByteArrayDeserializer");
-        consumer = new KafkaConsumer<String, byte[]>(props);
-        consumer.subscribe(Collections.singletonList(topic));
+        return new KafkaConsumer<String, byte[]>(props);
+    }
+
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        pipeline = new KafkaPipeline(kafkaHandlers, budget, decodeThreads, dispatchThreads);
+        executor = Executors.newFixedThreadPool(consumers, new NamedThreadFactory("KafkaServer-consumer"));
+        for (int i = 0; i < consumers; i++) {
+            KafkaConsumerWorker worker = new KafkaConsumerWorker(createConsumer(), topic, pipeline, budget,
+                commitBatchSize, commitInterval, TimeUnit.SECONDS.toMillis(SHUTDOWN_TIMEOUT_SECONDS) / 2);
+            workers.add(worker);
+            executor.submit(worker);
+        }
+        logger.info("kafka server started, topic: {}, consumers: {}, decode threads: {}, dispatch threads: {}",
+            topic, consumers, decodeThreads, dispatchThreads);
     }
 
-    public void start() {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                while (true) {
-                    ConsumerRecords<String, byte[]> records = consumer.poll(1000);
-                    logger.info("获取的kafka消息： " + records.count());
-                    for (KafkaHandler kafkaHandler : kafkaHandlers) {
-                        kafkaHandler.doConsumer(records);
-                    }
-                }
+    public synchronized void shutdown() {
+        if (executor == null) {
+            return;
+        }
+        for (KafkaConsumerWorker worker : workers) {
+            worker.shutdown();
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("kafka consumers didn't stop in {} seconds", SHUTDOWN_TIMEOUT_SECONDS);
+                executor.shutdownNow();
             }
-        }).start();
+            pipeline.shutdown(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        workers.clear();
+        executor = null;
+        logger.info("kafka server stopped, topic: {}", topic);
     }
 }
@@ -0,0 +1,23 @@
+package org.apache.skywalking.oap.server.receiver.trace.server;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author caoyixiong
+ */
+class NamedThreadFactory implements ThreadFactory {
+    private final String namePrefix;
+    private final AtomicInteger threadSeq = new AtomicInteger(0);
+
+    NamedThreadFactory(String namePrefix) {
+        this.namePrefix = namePrefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, namePrefix + "-" + threadSeq.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,171 @@
+package org.apache.skywalking.oap.server.receiver.trace.server;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetCommitCallback;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Commits, for every partition of one consumer, the offset up to which all the records have been dispatched. Records
+ * complete on the pipeline threads in any order, while the commits are only issued by the thread owning the consumer,
+ * asynchronously once {@code commitBatchSize} records completed or {@code commitInterval} elapsed. An offset only
+ * counts as committed once the broker acknowledged it, a failed commit is sent again with the next one.
+ * <p>
+ * This gives at-least-once delivery, records in flight when a partition is revoked or the node crashes are polled
+ * again by the next owner.
+ *
+ * @author caoyixiong
+ */
+class OffsetCommitCoordinator implements ConsumerRebalanceListener {
+    private static final Logger logger = LoggerFactory.getLogger(OffsetCommitCoordinator.class);
+
+    private final Consumer<String, byte[]> consumer;
+    private final int commitBatchSize;
+    private final long commitInterval;
+    private final Map<TopicPartition, PartitionOffsets> partitions = new ConcurrentHashMap<>();
+    private final AtomicInteger completedSinceCommit = new AtomicInteger(0);
+    private long lastCommitTime = System.currentTimeMillis();
+    private final OffsetCommitCallback commitCallback = new OffsetCommitCallback() {
+        @Override
+        public void onComplete(Map<TopicPartition, OffsetAndMetadata> offsets, Exception exception) {
+            if (exception != null) {
+                logger.warn("commit kafka offsets {} failure, they will be committed with the next batch", offsets, exception);
+            } else {
+                committed(offsets);
+            }
+        }
+    };
+
+    OffsetCommitCoordinator(Consumer<String, byte[]> consumer, int commitBatchSize, long commitInterval) {
+        this.consumer = consumer;
+        this.commitBatchSize = commitBatchSize;
+        this.commitInterval = commitInterval;
+    }
+
+    /**
+     * Called by the consumer thread for every polled record.
+     */
+    PartitionOffsets track(TopicPartition partition, long offset) {
+        PartitionOffsets offsets = partitions.get(partition);
+        if (offsets == null) {
+            offsets = new PartitionOffsets();
+            partitions.put(partition, offsets);
+        }
+        offsets.track(offset);
+        return offsets;
+    }
+
+    /**
+     * Called by the pipeline threads once a record has been dispatched.
+     */
+    void complete(PartitionOffsets offsets, long offset) {
+        if (offsets.complete(offset)) {
+            completedSinceCommit.incrementAndGet();
+        }
+    }
+
+    /**
+     * Called by the consumer thread on each poll loop.
+     */
+    void maybeCommit() {
+        long now = System.currentTimeMillis();
+        if (completedSinceCommit.get() < commitBatchSize && now - lastCommitTime < commitInterval) {
+            return;
+        }
+        lastCommitTime = now;
+        completedSinceCommit.set(0);
+        Map<TopicPartition, OffsetAndMetadata> commits = committableOffsets();
+        if (!commits.isEmpty()) {
+            consumer.commitAsync(commits, commitCallback);
+        }
+    }
+
+    /**
+     * Called by the consumer thread before closing the consumer, waits for the records in flight and commits them.
+     */
+    void commitOnClose(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            while (pendingCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            commitSync();
+        } catch (WakeupException e) {
+            // the wakeup of the shutdown was still pending when the poll loop exited, it is consumed by now
+            commitSync();
+        }
+    }
+
+    @Override
+    public void onPartitionsRevoked(Collection<TopicPartition> revoked) {
+        commitSync();
+        for (TopicPartition partition : revoked) {
+            partitions.remove(partition);
+        }
+    }
+
+    @Override
+    public void onPartitionsAssigned(Collection<TopicPartition> assigned) {
+    }
+
+    private void commitSync() {
+        Map<TopicPartition, OffsetAndMetadata> commits = committableOffsets();
+        if (commits.isEmpty()) {
+            return;
+        }
+        try {
+            consumer.commitSync(commits);
+            committed(commits);
+        } catch (WakeupException e) {
+            throw e;
+        } catch (Exception e) {
+            logger.warn("commit kafka offsets {} failure", commits, e);
+        }
+    }
+
+    private Map<TopicPartition, OffsetAndMetadata> committableOffsets() {
+        Map<TopicPartition, OffsetAndMetadata> commits = new HashMap<>();
+        for (Map.Entry<TopicPartition, PartitionOffsets> entry : partitions.entrySet()) {
+            long offset = entry.getValue().committable();
+            if (offset >= 0) {
+                commits.put(entry.getKey(), new OffsetAndMetadata(offset));
+            }
+        }
+        return commits;
+    }
+
+    /**
+     * Called by the consumer thread, the async commit callbacks run in its poll. A partition revoked in the meantime
+     * is skipped.
+     */
+    private void committed(Map<TopicPartition, OffsetAndMetadata> commits) {
+        for (Map.Entry<TopicPartition, OffsetAndMetadata> entry : commits.entrySet()) {
+            PartitionOffsets offsets = partitions.get(entry.getKey());
+            if (offsets != null) {
+                offsets.committed(entry.getValue().offset());
+            }
+        }
+    }
+
+    private int pendingCount() {
+        int count = 0;
+        for (PartitionOffsets offsets : partitions.values()) {
+            count += offsets.pendingCount();
+        }
+        return count;
+    }
+}
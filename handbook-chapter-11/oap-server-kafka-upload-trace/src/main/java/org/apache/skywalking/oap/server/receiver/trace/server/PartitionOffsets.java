@@ -0,0 +1,44 @@
+package org.apache.skywalking.oap.server.receiver.trace.server;
+
+import java.util.TreeSet;
+
+/**
+ * Offsets of one assigned partition which have been polled but not completed yet. The committable offset is the
+ * smallest pending one, or the one following the last polled record when nothing is pending, so gaps in the offsets
+ * of the partition never block the commit.
+ *
+ * @author caoyixiong
+ */
+class PartitionOffsets {
+    private final TreeSet<Long> pending = new TreeSet<>();
+    private long nextOffset = -1;
+    private long committedOffset = -1;
+
+    synchronized void track(long offset) {
+        pending.add(offset);
+        nextOffset = Math.max(nextOffset, offset + 1);
+    }
+
+    /**
+     * @return true if the offset was pending, a partition revoked in the meantime has already forgotten it.
+     */
+    synchronized boolean complete(long offset) {
+        return pending.remove(offset);
+    }
+
+    /**
+     * @return the offset to commit, or -1 if it didn't move since the last commit.
+     */
+    synchronized long committable() {
+        long offset = pending.isEmpty() ? nextOffset : pending.first();
+        return offset > committedOffset ? offset : -1;
+    }
+
+    synchronized void committed(long offset) {
+        committedOffset = Math.max(committedOffset, offset);
+    }
+
+    synchronized int pendingCount() {
+        return pending.size();
+    }
+}